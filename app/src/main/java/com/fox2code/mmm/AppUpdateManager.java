@@ -2,6 +2,7 @@ package com.fox2code.mmm;
 
 import android.util.Log;
 
+import com.fox2code.mmm.repo.FreshnessPolicy;
 import com.fox2code.mmm.utils.Files;
 import com.fox2code.mmm.utils.Http;
 
@@ -125,9 +126,8 @@ public class AppUpdateManager {
 
     public void checkUpdateCompat() {
         if (this.compatFile.exists()) {
-            long lastUpdate = this.compatFile.lastModified();
-            if (lastUpdate <= System.currentTimeMillis() &&
-                    lastUpdate + 600_000L > System.currentTimeMillis()) {
+            if (FreshnessPolicy.isFresh(this.compatFile.lastModified(),
+                    FreshnessPolicy.getCompatTtl())) {
                 return; // Skip update
             }
         }
@@ -28,20 +28,28 @@ import com.fox2code.mmm.installer.InstallerInitializer;
 import com.fox2code.mmm.manager.LocalModuleInfo;
 import com.fox2code.mmm.manager.ModuleManager;
 import com.fox2code.mmm.repo.RepoManager;
+import com.fox2code.mmm.repo.RepoModule;
+import com.fox2code.mmm.repo.RepoUpdateFuture;
 import com.fox2code.mmm.settings.SettingsActivity;
 import com.fox2code.mmm.utils.Http;
 import com.fox2code.mmm.utils.IntentHelper;
+import com.fox2code.mmm.utils.ProgressDispatcher;
 import com.google.android.material.progressindicator.LinearProgressIndicator;
+import com.topjohnwu.superuser.internal.UiThreadHandler;
 
 import eightbitlab.com.blurview.BlurView;
 import eightbitlab.com.blurview.BlurViewFacade;
 import eightbitlab.com.blurview.RenderScriptBlur;
 
+import java.util.concurrent.TimeUnit;
+
 public class MainActivity extends CompatActivity implements SwipeRefreshLayout.OnRefreshListener,
         SearchView.OnQueryTextListener, SearchView.OnCloseListener,
         OverScrollManager.OverScrollHelper {
     private static final String TAG = "MainActivity";
     private static final int PRECISION = 10000;
+    private static final int PHASE_REPO_UPDATE = 0;
+    private static final int PHASE_MODULE_UPDATE_CHECK = 1;
     public final ModuleViewListBuilder moduleViewListBuilder;
     public LinearProgressIndicator progressIndicator;
     private ModuleViewAdapter moduleViewAdapter;
@@ -58,6 +66,11 @@ public class MainActivity extends CompatActivity implements SwipeRefreshLayout.O
     private CardView searchCard;
     private SearchView searchView;
     private boolean initMode;
+    private RepoUpdateFuture repoUpdateFuture;
+    private RepoManager.UpdateListener repoUpdateListener;
+    private boolean metadataRefreshScheduled;
+    private volatile boolean remoteModulesListed;
+    private final RepoManager.MetadataListener metadataListener = this::onMetadataLoaded;
 
     public MainActivity() {
         this.moduleViewListBuilder = new ModuleViewListBuilder(this);
@@ -101,6 +114,7 @@ public class MainActivity extends CompatActivity implements SwipeRefreshLayout.O
         this.moduleList.setAdapter(this.moduleViewAdapter);
         this.moduleList.setLayoutManager(new LinearLayoutManager(this));
         this.moduleList.setItemViewCacheSize(4); // Default is 2
+        RepoManager.setMetadataListener(this.metadataListener);
         OverScrollManager.install(this.moduleList, this);
         this.swipeRefreshLayout.setOnRefreshListener(this);
         this.actionBarBlur.setBackground(this.actionBarBackground);
@@ -170,11 +184,12 @@ public class MainActivity extends CompatActivity implements SwipeRefreshLayout.O
                 });
                 Log.i(TAG, "Scanning for modules!");
                 final int max = ModuleManager.getINSTANCE().getUpdatableModuleCount();
-                RepoManager.getINSTANCE().update(value -> runOnUiThread(max == 0 ? () ->
-                        progressIndicator.setProgressCompat(
-                                (int) (value * PRECISION), true) :() ->
-                        progressIndicator.setProgressCompat(
-                                (int) (value * PRECISION * 0.75F), true)));
+                final ProgressDispatcher progressDispatcher = new ProgressDispatcher(
+                        value -> progressIndicator.setProgressCompat(
+                                (int) (value * PRECISION), true),
+                        0.75D, max == 0 ? 0D : 0.25D);
+                updateRepos(value -> progressDispatcher.setProgress(
+                        PHASE_REPO_UPDATE, value), false);
                 if (!NotificationType.NO_INTERNET.shouldRemove()) {
                     moduleViewListBuilder.addNotification(NotificationType.NO_INTERNET);
                 } else {
@@ -196,14 +211,13 @@ public class MainActivity extends CompatActivity implements SwipeRefreshLayout.O
                                             + localModuleInfo.id, e);
                                 }
                                 current++;
-                                final int currentTmp = current;
-                                runOnUiThread(() -> progressIndicator.setProgressCompat(
-                                        (int) ((1F * currentTmp / max) * PRECISION * 0.25F
-                                                + (PRECISION * 0.75F)), true));
+                                progressDispatcher.setProgress(
+                                        PHASE_MODULE_UPDATE_CHECK, current, max);
                             }
                         }
                     }
                 }
+                progressDispatcher.close();
                 runOnUiThread(() -> {
                     progressIndicator.setProgressCompat(PRECISION, true);
                     progressIndicator.setVisibility(View.GONE);
@@ -212,6 +226,7 @@ public class MainActivity extends CompatActivity implements SwipeRefreshLayout.O
                     updateScreenInsets(getResources().getConfiguration());
                 });
                 moduleViewListBuilder.appendRemoteModules();
+                remoteModulesListed = true;
                 moduleViewListBuilder.applyTo(moduleList, moduleViewAdapter);
                 Log.i(TAG, "Finished app opening state!");
             }
@@ -219,6 +234,52 @@ public class MainActivity extends CompatActivity implements SwipeRefreshLayout.O
         this.initMode = false;
     }
 
+    // Refresh displayed modules at most every 250ms while metadata are loading
+    private void onMetadataLoaded(RepoModule repoModule) {
+        runOnUiThread(() -> {
+            if (this.metadataRefreshScheduled) return;
+            this.metadataRefreshScheduled = true;
+            UiThreadHandler.handler.postDelayed(() -> {
+                this.metadataRefreshScheduled = false;
+                if (!this.remoteModulesListed) return;
+                // Loaded metadata may make modules incompatible or not match the search
+                new Thread(() -> {
+                    this.moduleViewListBuilder.appendRemoteModules();
+                    this.moduleViewListBuilder.applyTo(this.moduleList, this.moduleViewAdapter);
+                }, "Metadata apply thread").start();
+            }, 250);
+        });
+    }
+
+    // Join or start a repo update, the update is cancelled if the activity is destroyed
+    private void updateRepos(RepoManager.UpdateListener updateListener, boolean force) {
+        RepoUpdateFuture repoUpdateFuture =
+                RepoManager.getINSTANCE().requestUpdate(updateListener, force);
+        this.repoUpdateListener = updateListener;
+        this.repoUpdateFuture = repoUpdateFuture;
+        try {
+            repoUpdateFuture.await(RepoManager.UPDATE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } finally {
+            repoUpdateFuture.removeUpdateListener(updateListener);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        RepoManager.removeMetadataListener(this.metadataListener);
+        RepoUpdateFuture repoUpdateFuture = this.repoUpdateFuture;
+        if (repoUpdateFuture != null) {
+            if (this.isChangingConfigurations()) {
+                // The recreated activity will attach to the same sync
+                repoUpdateFuture.removeUpdateListener(this.repoUpdateListener);
+            } else {
+                repoUpdateFuture.detach(this.repoUpdateListener);
+            }
+            this.repoUpdateFuture = null;
+        }
+        super.onDestroy();
+    }
+
     private void cardIconifyUpdate() {
         boolean iconified = this.searchView.isIconified();
         int backgroundAttr = iconified ?
@@ -353,9 +414,13 @@ public class MainActivity extends CompatActivity implements SwipeRefreshLayout.O
         // this.swipeRefreshLayout.setRefreshing(true); ??
         new Thread(() -> {
             Http.cleanDnsCache(); // Allow DNS reload from network
-            RepoManager.getINSTANCE().update(value -> runOnUiThread(() ->
-                    this.progressIndicator.setProgressCompat(
-                            (int) (value * PRECISION), true)));
+            final ProgressDispatcher progressDispatcher = new ProgressDispatcher(
+                    value -> this.progressIndicator.setProgressCompat(
+                            (int) (value * PRECISION), true), 1D);
+            // User asked for a refresh, so ignore freshness of cached data
+            this.updateRepos(value ->
+                    progressDispatcher.setProgress(PHASE_REPO_UPDATE, value), true);
+            progressDispatcher.close();
             if (!NotificationType.NO_INTERNET.shouldRemove())
                 moduleViewListBuilder.addNotification(NotificationType.NO_INTERNET);
             else if (AppUpdateManager.getAppUpdateManager().checkUpdate(true))
@@ -22,6 +22,7 @@ import com.fox2code.mmm.compat.CompatActivity;
 import com.fox2code.mmm.compat.CompatApplication;
 import com.fox2code.mmm.compat.CompatThemeWrapper;
 import com.fox2code.mmm.installer.InstallerInitializer;
+import com.fox2code.mmm.repo.RepoManager;
 import com.fox2code.mmm.utils.GMSProviderInstaller;
 import com.fox2code.mmm.utils.Http;
 import com.topjohnwu.superuser.Shell;
@@ -127,6 +128,10 @@ public class MainApplication extends CompatApplication {
                 false) && isDeveloper();
     }
 
+    public static boolean isLazyMetadataEnabled() {
+        return getSharedPreferences().getBoolean("pref_lazy_metadata", false);
+    }
+
     public static boolean isUsingMagiskCommand() {
         return InstallerInitializer.peekMagiskVersion() >= Constants.MAGISK_VER_CODE_INSTALL_COMMAND
                 && getSharedPreferences().getBoolean("pref_use_magisk_install_command", false)
@@ -186,8 +191,8 @@ public class MainApplication extends CompatApplication {
         Markwon markwon = Markwon.builder(contextThemeWrapper).usePlugin(HtmlPlugin.create())
                 .usePlugin(SyntaxHighlightPlugin.create(
                         new Prism4j(new Prism4jGrammarLocator()), new Prism4jSwitchTheme()))
-                .usePlugin(ImagesPlugin.create().addSchemeHandler(
-                        OkHttpNetworkSchemeHandler.create(Http.getHttpClientWithCache()))).build();
+                .usePlugin(ImagesPlugin.create().addSchemeHandler(OkHttpNetworkSchemeHandler
+                        .create(Http.getHttpClientWithCache(Http.CACHE_IMAGES)))).build();
         return this.markwon = markwon;
     }
 
@@ -306,6 +311,10 @@ public class MainApplication extends CompatApplication {
                 Log.d("MainApplication", "Emoji compat loaded!");
             }, "Emoji compat init.").start();
         }
+        // Init Http and open connections before they are needed
+        new Thread(() -> Http.prewarm(RepoManager.getINSTANCE()
+                .getEnabledRepoUrls().toArray(new String[0])),
+                "Http prewarm thread").start();
     }
 
     @Override
@@ -322,6 +331,12 @@ public class MainApplication extends CompatApplication {
         compatActivity.setThemeRecreate(this.managerThemeResId);
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        Http.trimMemory(level);
+    }
+
     @Override
     public void onConfigurationChanged(@NonNull Configuration newConfig) {
         Locale newTimeFormatLocale = newConfig.locale;
@@ -21,6 +21,8 @@ import androidx.recyclerview.widget.RecyclerView;
 import com.fox2code.mmm.manager.LocalModuleInfo;
 import com.fox2code.mmm.manager.ModuleInfo;
 import com.fox2code.mmm.manager.ModuleManager;
+import com.fox2code.mmm.repo.RepoManager;
+import com.fox2code.mmm.repo.RepoMetadataLoader;
 import com.fox2code.mmm.repo.RepoModule;
 import com.google.android.material.switchmaterial.SwitchMaterial;
 import com.topjohnwu.superuser.internal.UiThreadHandler;
@@ -44,6 +46,7 @@ public final class ModuleViewAdapter extends RecyclerView.Adapter<ModuleViewAdap
     @Override
     public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
         final ModuleHolder moduleHolder = this.moduleHolders.get(position);
+        requestMetadata(moduleHolder, RepoMetadataLoader.PRIORITY_VISIBLE);
         if (holder.update(moduleHolder)) {
             UiThreadHandler.handler.post(() -> {
                 if (this.moduleHolders.get(position) == moduleHolder) {
@@ -54,6 +57,13 @@ public final class ModuleViewAdapter extends RecyclerView.Adapter<ModuleViewAdap
         }
     }
 
+    static void requestMetadata(ModuleHolder moduleHolder, int priority) {
+        RepoModule repoModule = moduleHolder.repoModule;
+        if (repoModule != null && repoModule.metadataPending) {
+            RepoManager.getINSTANCE().requestMetadata(repoModule, priority);
+        }
+    }
+
     @Override
     public int getItemCount() {
         return this.moduleHolders.size();
@@ -124,6 +134,7 @@ public final class ModuleViewAdapter extends RecyclerView.Adapter<ModuleViewAdap
                     if (this.initState) return; // Skip if non user
                     ModuleHolder moduleHolder = this.moduleHolder;
                     if (index < this.actionButtonsTypes.size() && moduleHolder != null) {
+                        requestMetadata(moduleHolder, RepoMetadataLoader.PRIORITY_OPENED);
                         this.actionButtonsTypes.get(index)
                                 .doAction((ImageButton) v, moduleHolder);
                         if (moduleHolder.shouldRemove()) {
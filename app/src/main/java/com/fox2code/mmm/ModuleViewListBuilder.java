@@ -12,6 +12,7 @@ import com.fox2code.mmm.manager.LocalModuleInfo;
 import com.fox2code.mmm.manager.ModuleInfo;
 import com.fox2code.mmm.manager.ModuleManager;
 import com.fox2code.mmm.repo.RepoManager;
+import com.fox2code.mmm.repo.RepoMetadataLoader;
 import com.fox2code.mmm.repo.RepoModule;
 
 import java.util.ArrayList;
@@ -20,6 +21,7 @@ import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Locale;
+import java.util.Map;
 
 public class ModuleViewListBuilder {
     private static final String TAG = "ModuleViewListBuilder";
@@ -73,31 +75,30 @@ public class ModuleViewListBuilder {
             for (ModuleHolder moduleHolder : this.mappedModuleHolders.values()) {
                 moduleHolder.repoModule = null;
             }
-            RepoManager repoManager = RepoManager.getINSTANCE();
-            repoManager.runAfterUpdate(() -> {
-                Log.i(TAG, "A2: " + repoManager.getModules().size());
-                boolean no32bitSupport = Build.SUPPORTED_32_BIT_ABIS.length == 0;
-                for (RepoModule repoModule : repoManager.getModules().values()) {
-                    if (!repoModule.repoData.isEnabled()) continue;
-                    ModuleInfo moduleInfo = repoModule.moduleInfo;
-                    if (!showIncompatible && (moduleInfo.minApi > Build.VERSION.SDK_INT ||
-                            (moduleInfo.maxApi != 0 && moduleInfo.maxApi < Build.VERSION.SDK_INT) ||
-                            // Only check Magisk compatibility if root is present
-                            (InstallerInitializer.peekMagiskPath() != null &&
-                                    repoModule.moduleInfo.minMagisk >
-                                            InstallerInitializer.peekMagiskVersion())) ||
-                            // If 64bit only system, skip 32bit only modules
-                            (no32bitSupport && (AppUpdateManager.getFlagsForModule(repoModule.id)
-                                    & AppUpdateManager.FLAG_COMPAT_NEED_32BIT) != 0)
-                    ) continue; // Skip adding incompatible modules
-                    ModuleHolder moduleHolder = this.mappedModuleHolders.get(repoModule.id);
-                    if (moduleHolder == null) {
-                        this.mappedModuleHolders.put(repoModule.id,
-                                moduleHolder = new ModuleHolder(repoModule.id));
-                    }
-                    moduleHolder.repoModule = repoModule;
+            // Catalog is replaced as a whole on update, so it's always consistent
+            Map<String, RepoModule> repoModules = RepoManager.getINSTANCE().getModules();
+            Log.i(TAG, "A2: " + repoModules.size());
+            boolean no32bitSupport = Build.SUPPORTED_32_BIT_ABIS.length == 0;
+            for (RepoModule repoModule : repoModules.values()) {
+                if (!repoModule.repoData.isEnabled()) continue;
+                ModuleInfo moduleInfo = repoModule.moduleInfo;
+                if (!showIncompatible && (moduleInfo.minApi > Build.VERSION.SDK_INT ||
+                        (moduleInfo.maxApi != 0 && moduleInfo.maxApi < Build.VERSION.SDK_INT) ||
+                        // Only check Magisk compatibility if root is present
+                        (InstallerInitializer.peekMagiskPath() != null &&
+                                repoModule.moduleInfo.minMagisk >
+                                        InstallerInitializer.peekMagiskVersion())) ||
+                        // If 64bit only system, skip 32bit only modules
+                        (no32bitSupport && (AppUpdateManager.getFlagsForModule(repoModule.id)
+                                & AppUpdateManager.FLAG_COMPAT_NEED_32BIT) != 0)
+                ) continue; // Skip adding incompatible modules
+                ModuleHolder moduleHolder = this.mappedModuleHolders.get(repoModule.id);
+                if (moduleHolder == null) {
+                    this.mappedModuleHolders.put(repoModule.id,
+                            moduleHolder = new ModuleHolder(repoModule.id));
                 }
-            });
+                moduleHolder.repoModule = repoModule;
+            }
         }
     }
 
@@ -248,6 +249,8 @@ public class ModuleViewListBuilder {
     private boolean matchFilter(ModuleHolder moduleHolder) {
         ModuleInfo moduleInfo = moduleHolder.getMainModuleInfo();
         String query = this.query;
+        if (!query.isEmpty()) // Description is needed for search
+            ModuleViewAdapter.requestMetadata(moduleHolder, RepoMetadataLoader.PRIORITY_SEARCHED);
         String idLw = moduleInfo.id.toLowerCase(Locale.ROOT);
         String nameLw = moduleInfo.name.toLowerCase(Locale.ROOT);
         String authorLw = moduleInfo.author == null ? "" :
@@ -11,27 +11,24 @@ import com.fox2code.mmm.repo.RepoModule;
 import com.fox2code.mmm.utils.Http;
 import com.fox2code.mmm.utils.PropUtils;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
 public class AndroidacyRepoData extends RepoData {
     private static final String TAG = "AndroidacyRepoData";
-    private long androidacyBlockade = 0;
 
     public AndroidacyRepoData(String url, File cacheRoot,
                                  SharedPreferences cachedPreferences) {
         super(url, cacheRoot, cachedPreferences);
         if (this.metaDataCache.exists()) {
-            this.androidacyBlockade = this.metaDataCache.lastModified() + 5_000L;
-            if (this.androidacyBlockade - 10_000L > System.currentTimeMillis()) {
-                this.androidacyBlockade = 0; // Don't allow time travel. Well why not???
+            long delay = this.metaDataCache.lastModified() + 5_000L -
+                    System.currentTimeMillis();
+            if (delay > 0 && delay <= 5_000L) { // Don't allow time travel
+                this.health.throttle(delay);
             }
         }
     }
@@ -39,9 +36,7 @@ public class AndroidacyRepoData extends RepoData {
     @Override
     protected boolean prepare() {
         // Implementation details discussed on telegram
-        long time = System.currentTimeMillis();
-        if (this.androidacyBlockade > time) return false;
-        this.androidacyBlockade = time + 5_000L;
+        this.health.throttle(5_000L);
         String cookies = CookieManager.getInstance().getCookie("https://.androidacy.com/");
         int start = cookies == null ? -1 : cookies.indexOf("USER=");
         String token = null;
@@ -57,7 +52,7 @@ public class AndroidacyRepoData extends RepoData {
                 if ("Received error code: 419".equals(e.getMessage()) ||
                         "Received error code: 429".equals(e.getMessage())) {
                     Log.e(TAG, "We are being rate limited!", e);
-                    this.androidacyBlockade = time + 3_600_000L;
+                    this.health.openFor(3_600_000L);
                     return false;
                 }
                 Log.w(TAG, "Invalid token, resetting...");
@@ -82,7 +77,7 @@ public class AndroidacyRepoData extends RepoData {
                         "Received error code: 503".equals(e.getMessage())
                         ) {
                     Log.e(TAG, "We are being rate limited!", e);
-                    this.androidacyBlockade = time + 3_600_000L;
+                    this.health.openFor(3_600_000L);
                 }
                 Log.e(TAG, "Failed to get a new token", e);
                 return false;
@@ -92,97 +87,101 @@ public class AndroidacyRepoData extends RepoData {
     }
 
     @Override
-    protected List<RepoModule> populate(JSONObject jsonObject) throws JSONException {
+    protected String getIndexArrayKey() {
+        return "data";
+    }
+
+    @Override
+    protected String getIndexIdKey() {
+        return "codename";
+    }
+
+    @Override
+    protected long getDeltaSince() {
+        return this.lastUpdate / 1000; // updated_at is in seconds
+    }
+
+    @Override
+    protected void stageModule(IndexUpdate indexUpdate,
+                               JSONObject jsonObject) throws JSONException {
+        String moduleId = jsonObject.getString("codename");
+        // Deny remote modules ids shorter than 3 chars
+        if (moduleId.length() < 3 || indexUpdate.modules.containsKey(moduleId)) return;
+        long lastUpdate = jsonObject.getLong("updated_at") * 1000;
+        RepoModule oldRepoModule = this.moduleHashMap.get(moduleId);
+        // Metadata are in the index, so always build a new module instead
+        // of modifying one that may already be published
+        RepoModule repoModule = new RepoModule(this, moduleId);
+        repoModule.moduleInfo.flags = 0;
+        if (oldRepoModule == null || oldRepoModule.lastUpdated < lastUpdate) {
+            indexUpdate.outdated.add(repoModule);
+        }
+        indexUpdate.modules.put(moduleId, repoModule);
+        repoModule.lastUpdated = lastUpdate;
+        repoModule.zipUrl = filterURL(
+                jsonObject.optString("zipUrl", ""));
+        repoModule.notesUrl = filterURL(
+                jsonObject.optString("notesUrl", ""));
+        if (repoModule.zipUrl == null)  {
+            repoModule.zipUrl = // Fallback url in case the API doesn't have zipUrl
+                    "https://api.androidacy.com/magisk/info/?module=" + moduleId;
+        }
+        if (repoModule.notesUrl == null) {
+            repoModule.notesUrl = // Fallback url in case the API doesn't have notesUrl
+                    "https://api.androidacy.com/magisk/readme/?module=" + moduleId;
+        }
+        repoModule.qualityText = R.string.module_downloads;
+        repoModule.qualityValue = jsonObject.optInt("downloads", 0);
+        String checksum = jsonObject.optString("checksum", "");
+        repoModule.checksum = checksum.isEmpty() ? null : checksum;
+        ModuleInfo moduleInfo = repoModule.moduleInfo;
+        moduleInfo.name = jsonObject.getString("name");
+        moduleInfo.versionCode = jsonObject.getLong("versionCode");
+        moduleInfo.version = jsonObject.optString(
+                "version", "v" + moduleInfo.versionCode);
+        moduleInfo.author = jsonObject.optString("author", "Unknown");
+        moduleInfo.description = jsonObject.optString("description", "");
+        moduleInfo.minApi = jsonObject.getInt("minApi");
+        moduleInfo.maxApi = jsonObject.getInt("maxApi");
+        String minMagisk = jsonObject.getString("minMagisk");
+        try {
+            int c = minMagisk.indexOf('.');
+            if (c == -1) {
+                moduleInfo.minMagisk = Integer.parseInt(minMagisk);
+            } else {
+                moduleInfo.minMagisk = // Allow 24.1 to mean 24100
+                        (Integer.parseInt(minMagisk.substring(0, c)) * 1000) +
+                                (Integer.parseInt(minMagisk.substring(c + 1)) * 100);
+            }
+        } catch (Exception e) {
+            moduleInfo.minMagisk = 0;
+        }
+        moduleInfo.support = filterURL(jsonObject.optString("support"));
+        moduleInfo.donate = filterURL(jsonObject.optString("donate"));
+        String config = jsonObject.optString("config", "");
+        moduleInfo.config = config.isEmpty() ? null : config;
+        PropUtils.applyFallbacks(moduleInfo); // Apply fallbacks
+        Log.d(TAG, "Module " + moduleInfo.name + " " + moduleInfo.id + " " +
+                moduleInfo.version + " " + moduleInfo.versionCode);
+    }
+
+    @Override
+    protected List<RepoModule> applyIndex(JSONObject jsonObject,
+                                          IndexUpdate indexUpdate) throws JSONException {
         if (!jsonObject.getString("status").equals("success"))
             throw new JSONException("Response is not a success!");
         String name = jsonObject.optString(
                 "name", "Androidacy Modules Repo");
         String nameForModules = name.endsWith(" (Official)") ?
                 name.substring(0, name.length() - 11) : name;
-        JSONArray jsonArray = jsonObject.getJSONArray("data");
-        for (RepoModule repoModule : this.moduleHashMap.values()) {
-            repoModule.processed = false;
-        }
-        ArrayList<RepoModule> newModules = new ArrayList<>();
-        int len = jsonArray.length();
         long lastLastUpdate = 0;
-        for (int i = 0; i < len; i++) {
-            jsonObject = jsonArray.getJSONObject(i);
-            String moduleId = jsonObject.getString("codename");
-            // Deny remote modules ids shorter than 3 chars
-            if (moduleId.length() < 3) continue;
-            long lastUpdate = jsonObject.getLong("updated_at") * 1000;
-            lastLastUpdate = Math.max(lastLastUpdate, lastUpdate);
-            RepoModule repoModule = this.moduleHashMap.get(moduleId);
-            if (repoModule == null) {
-                repoModule = new RepoModule(this, moduleId);
-                repoModule.moduleInfo.flags = 0;
-                this.moduleHashMap.put(moduleId, repoModule);
-                newModules.add(repoModule);
-            } else {
-                if (repoModule.lastUpdated < lastUpdate) {
-                    newModules.add(repoModule);
-                }
-            }
-            repoModule.processed = true;
-            repoModule.lastUpdated = lastUpdate;
-            repoModule.repoName = nameForModules;
-            repoModule.zipUrl = filterURL(
-                    jsonObject.optString("zipUrl", ""));
-            repoModule.notesUrl = filterURL(
-                    jsonObject.optString("notesUrl", ""));
-            if (repoModule.zipUrl == null)  {
-                repoModule.zipUrl = // Fallback url in case the API doesn't have zipUrl
-                        "https://api.androidacy.com/magisk/info/?module=" + moduleId;
-            }
-            if (repoModule.notesUrl == null) {
-                repoModule.notesUrl = // Fallback url in case the API doesn't have notesUrl
-                        "https://api.androidacy.com/magisk/readme/?module=" + moduleId;
-            }
-            repoModule.qualityText = R.string.module_downloads;
-            repoModule.qualityValue = jsonObject.optInt("downloads", 0);
-            String checksum = jsonObject.optString("checksum", "");
-            repoModule.checksum = checksum.isEmpty() ? null : checksum;
-            ModuleInfo moduleInfo = repoModule.moduleInfo;
-            moduleInfo.name = jsonObject.getString("name");
-            moduleInfo.versionCode = jsonObject.getLong("versionCode");
-            moduleInfo.version = jsonObject.optString(
-                    "version", "v" + moduleInfo.versionCode);
-            moduleInfo.author = jsonObject.optString("author", "Unknown");
-            moduleInfo.description = jsonObject.optString("description", "");
-            moduleInfo.minApi = jsonObject.getInt("minApi");
-            moduleInfo.maxApi = jsonObject.getInt("maxApi");
-            String minMagisk = jsonObject.getString("minMagisk");
-            try {
-                int c = minMagisk.indexOf('.');
-                if (c == -1) {
-                    moduleInfo.minMagisk = Integer.parseInt(minMagisk);
-                } else {
-                    moduleInfo.minMagisk = // Allow 24.1 to mean 24100
-                            (Integer.parseInt(minMagisk.substring(0, c)) * 1000) +
-                                    (Integer.parseInt(minMagisk.substring(c + 1)) * 100);
-                }
-            } catch (Exception e) {
-                moduleInfo.minMagisk = 0;
-            }
-            moduleInfo.support = filterURL(jsonObject.optString("support"));
-            moduleInfo.donate = filterURL(jsonObject.optString("donate"));
-            String config = jsonObject.optString("config", "");
-            moduleInfo.config = config.isEmpty() ? null : config;
-            PropUtils.applyFallbacks(moduleInfo); // Apply fallbacks
-            Log.d(TAG, "Module " + moduleInfo.name + " " + moduleInfo.id + " " +
-                    moduleInfo.version + " " + moduleInfo.versionCode);
-        }
-        Iterator<RepoModule> moduleInfoIterator = this.moduleHashMap.values().iterator();
-        while (moduleInfoIterator.hasNext()) {
-            RepoModule repoModule = moduleInfoIterator.next();
-            if (!repoModule.processed) {
-                moduleInfoIterator.remove();
-            }
+        for (RepoModule repoModule : indexUpdate.modules.values()) {
+            lastLastUpdate = Math.max(lastLastUpdate, repoModule.lastUpdated);
         }
+        this.applyModules(indexUpdate, nameForModules);
         this.lastUpdate = lastLastUpdate;
         this.name = name;
-        return newModules;
+        return indexUpdate.outdated;
     }
 
     private static String filterURL(String url) {
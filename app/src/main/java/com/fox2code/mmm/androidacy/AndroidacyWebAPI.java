@@ -57,7 +57,7 @@ public class AndroidacyWebAPI {
                                           String checksum, boolean canInstall) {
         this.downloadMode = false;
         RepoModule repoModule = RepoManager.getINSTANCE()
-                .getAndroidacyRepoData().moduleHashMap.get(installTitle);
+                .getAndroidacyRepoData().getModules().get(installTitle);
         String title, description;
         if (repoModule != null) {
             title = repoModule.moduleInfo.name;
@@ -237,7 +237,7 @@ public class AndroidacyWebAPI {
             }
         } else {
             RepoModule repoModule = RepoManager.getINSTANCE()
-                    .getAndroidacyRepoData().moduleHashMap.get(installTitle);
+                    .getAndroidacyRepoData().getModules().get(installTitle);
             String config = null;
             if (repoModule != null && repoModule.moduleInfo.name.length() >= 3) {
                 installTitle = repoModule.moduleInfo.name; // Set title to module name
@@ -35,11 +35,13 @@ import com.topjohnwu.superuser.Shell;
 import com.topjohnwu.superuser.internal.UiThreadHandler;
 import com.topjohnwu.superuser.io.SuFile;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.MessageDigest;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
@@ -127,18 +129,23 @@ public class InstallerActivity extends CompatActivity {
                 if (moduleCache.exists() && !moduleCache.delete() &&
                         !new SuFile(moduleCache.getAbsolutePath()).delete())
                     Log.e(TAG, "Failed to delete module cache");
+                File rawModule = new File(this.moduleCache, "module.download");
+                boolean downloaded = false;
+                boolean stored = false;
+                ModuleZipStore moduleZipStore = new ModuleZipStore(this);
                 String errMessage = "Failed to download module zip";
                 try {
-                    Log.i(TAG, "Downloading: " + target);
-                    byte[] rawModule = Http.doHttpGet(target,(progress, max, done) -> {
-                        if (max <= 0 && this.progressIndicator.isIndeterminate())
-                            return;
-                        this.runOnUiThread(() -> {
-                            this.progressIndicator.setIndeterminate(false);
-                            this.progressIndicator.setMax(max);
-                            this.progressIndicator.setProgressCompat(progress, true);
-                        });
-                    });
+                    // Checksum is computed while downloading, so it's ready at the end
+                    MessageDigest messageDigest = Hashes.checkSumDigest(checksum);
+                    if (moduleZipStore.get(checksum, rawModule, messageDigest)) {
+                        Log.i(TAG, "Using stored zip of: " + target);
+                        stored = true;
+                    } else {
+                        Log.i(TAG, "Downloading: " + target);
+                        if (messageDigest != null) messageDigest.reset();
+                        this.downloadModule(target, rawModule, messageDigest);
+                    }
+                    downloaded = true;
                     this.runOnUiThread(() -> {
                         this.progressIndicator.setVisibility(View.GONE);
                         this.progressIndicator.setIndeterminate(true);
@@ -149,11 +156,29 @@ public class InstallerActivity extends CompatActivity {
                         this.runOnUiThread(() -> {
                             this.installerTerminal.addLine("- Checking file integrity");
                         });
-                        if (!Hashes.checkSumMatch(rawModule, checksum)) {
+                        if (stored && !Hashes.checkSumMatch(messageDigest, checksum)) {
+                            // The stored zip got corrupted, download it again
+                            Log.w(TAG, "Stored zip of " + target + " is corrupted");
+                            moduleZipStore.remove(checksum);
+                            stored = false;
+                            Http.deletePartial(rawModule);
+                            if (messageDigest != null) messageDigest.reset();
+                            this.runOnUiThread(() -> {
+                                this.progressIndicator.setVisibility(View.VISIBLE);
+                            });
+                            this.downloadModule(target, rawModule, messageDigest);
+                            this.runOnUiThread(() -> {
+                                this.progressIndicator.setVisibility(View.GONE);
+                                this.progressIndicator.setIndeterminate(true);
+                            });
+                            if (this.canceled) return;
+                        }
+                        if (!Hashes.checkSumMatch(messageDigest, checksum)) {
                             this.setInstallStateFinished(false,
                                     "! File integrity check failed", "");
                             return;
                         }
+                        if (!stored) moduleZipStore.put(checksum, rawModule);
                     }
                     if (this.canceled) return;
                     Files.fixJavaZipHax(rawModule);
@@ -161,7 +186,7 @@ public class InstallerActivity extends CompatActivity {
                     boolean isModule = false;
                     errMessage = "File is not a valid zip file";
                     try (ZipInputStream zipInputStream = new ZipInputStream(
-                            new ByteArrayInputStream(rawModule))) {
+                            new FileInputStream(rawModule))) {
                         ZipEntry zipEntry;
                         while ((zipEntry = zipInputStream.getNextEntry()) != null) {
                             String entryName = zipEntry.getName();
@@ -181,9 +206,11 @@ public class InstallerActivity extends CompatActivity {
                     }
                     if (noPatch) {
                         errMessage = "Failed to save module zip";
-                        try (OutputStream outputStream = new FileOutputStream(moduleCache)) {
-                            outputStream.write(rawModule);
-                            outputStream.flush();
+                        if (!rawModule.renameTo(moduleCache)) {
+                            try (InputStream inputStream = new FileInputStream(rawModule);
+                                 OutputStream outputStream = new FileOutputStream(moduleCache)) {
+                                Files.copy(inputStream, outputStream);
+                            }
                         }
                     } else {
                         errMessage = "Failed to patch module zip";
@@ -191,14 +218,12 @@ public class InstallerActivity extends CompatActivity {
                             this.installerTerminal.addLine("- Patching " + name);
                         });
                         Log.i(TAG, "Patching: " + moduleCache.getName());
-                        try (OutputStream outputStream = new FileOutputStream(moduleCache)) {
-                            Files.patchModuleSimple(rawModule, outputStream);
-                            outputStream.flush();
+                        try (InputStream inputStream = new FileInputStream(rawModule);
+                             OutputStream outputStream = new FileOutputStream(moduleCache)) {
+                            Files.patchModuleSimple(inputStream, outputStream);
                         }
                     }
                     if (this.canceled) return;
-                    //noinspection UnusedAssignment (Important to avoid OutOfMemoryError)
-                    rawModule = null; // Because reference is kept when calling doInstall
                     this.runOnUiThread(() -> {
                         this.installerTerminal.addLine("- Installing " + name);
                     });
@@ -208,6 +233,9 @@ public class InstallerActivity extends CompatActivity {
                     Log.e(TAG, errMessage, e);
                     this.setInstallStateFinished(false,
                             "! " + errMessage, "");
+                } finally {
+                    // Interrupted downloads are kept so they can be resumed
+                    if (downloaded) Http.deletePartial(rawModule);
                 }
             }, "Module download Thread").start();
         } else {
@@ -237,6 +265,19 @@ public class InstallerActivity extends CompatActivity {
     }
 
 
+    private void downloadModule(String target, File rawModule,
+                                MessageDigest messageDigest) throws IOException {
+        Http.doHttpGet(target, rawModule, messageDigest, (progress, max, done) -> {
+            if (max <= 0 && this.progressIndicator.isIndeterminate())
+                return;
+            this.runOnUiThread(() -> {
+                this.progressIndicator.setIndeterminate(false);
+                this.progressIndicator.setMax(max);
+                this.progressIndicator.setProgressCompat(progress, true);
+            });
+        });
+    }
+
     private void doInstall(File file,boolean noExtensions,boolean rootless) {
         if (this.canceled) return;
         UiThreadHandler.runAndWait(() -> {
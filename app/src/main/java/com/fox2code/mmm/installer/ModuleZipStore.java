@@ -0,0 +1,137 @@
+package com.fox2code.mmm.installer;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.fox2code.mmm.utils.Files;
+import com.fox2code.mmm.utils.Hashes;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Keep downloaded module zips by checksum, so the same module
+ * doesn't need to be downloaded again to be reinstalled.
+ * Least recently used zips are deleted when over the size budget.
+ */
+public final class ModuleZipStore {
+    private static final String TAG = "ModuleZipStore";
+    private static final long MAX_SIZE = 256L * 1024 * 1024;
+    private static final Object lock = new Object();
+    private final File root;
+
+    public ModuleZipStore(Context context) {
+        this.root = new File(context.getCacheDir(), "module_store");
+    }
+
+    /**
+     * Copy a stored zip to {@code output}, updating {@code messageDigest}
+     * so the checksum can still be checked as if it was downloaded.
+     * @return false if no zip is stored for this checksum
+     */
+    public boolean get(String checksum, File output, MessageDigest messageDigest) {
+        if (!Hashes.checkSumValid(checksum)) return false;
+        synchronized (lock) {
+            File file = this.getFile(checksum);
+            if (!file.exists()) return false;
+            try (InputStream inputStream = new FileInputStream(file);
+                 OutputStream outputStream = messageDigest == null ?
+                         new FileOutputStream(output) : new DigestOutputStream(
+                                 new FileOutputStream(output), messageDigest)) {
+                Files.copy(inputStream, outputStream);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to read stored zip", e);
+                if (output.exists() && !output.delete())
+                    Log.w(TAG, "Failed to delete " + output.getName());
+                return false;
+            }
+            // Mark as recently used
+            if (!file.setLastModified(System.currentTimeMillis()))
+                Log.w(TAG, "Failed to update last use of " + file.getName());
+            return true;
+        }
+    }
+
+    /**
+     * Store a zip that already matched its checksum.
+     */
+    public void put(String checksum, File input) {
+        if (!Hashes.checkSumValid(checksum)) return;
+        if (input.length() > MAX_SIZE) return;
+        synchronized (lock) {
+            if (!this.root.exists() && !this.root.mkdirs()) {
+                Log.e(TAG, "Failed to mkdir module store dir!");
+                return;
+            }
+            File file = this.getFile(checksum);
+            File temp = new File(this.root, file.getName() + ".tmp");
+            try (InputStream inputStream = new FileInputStream(input);
+                 OutputStream outputStream = new FileOutputStream(temp)) {
+                Files.copy(inputStream, outputStream);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to store zip", e);
+                if (temp.exists() && !temp.delete())
+                    Log.w(TAG, "Failed to delete " + temp.getName());
+                return;
+            }
+            if (!temp.renameTo(file)) {
+                Log.e(TAG, "Failed to store zip");
+                if (!temp.delete()) Log.w(TAG, "Failed to delete " + temp.getName());
+                return;
+            }
+            this.trim(MAX_SIZE);
+        }
+    }
+
+    /**
+     * Delete the stored zip of this checksum, used if it didn't match it anymore.
+     */
+    public void remove(String checksum) {
+        if (!Hashes.checkSumValid(checksum)) return;
+        synchronized (lock) {
+            File file = this.getFile(checksum);
+            if (file.exists() && !file.delete())
+                Log.w(TAG, "Failed to delete " + file.getName());
+        }
+    }
+
+    /**
+     * Delete least recently used zips until the store fit in {@code maxSize}
+     */
+    public void trim(long maxSize) {
+        synchronized (lock) {
+            File[] files = this.root.listFiles();
+            if (files == null) return;
+            long size = 0;
+            final long[] lastModified = new long[files.length];
+            Integer[] order = new Integer[files.length];
+            for (int i = 0; i < files.length; i++) {
+                size += files[i].length();
+                lastModified[i] = files[i].lastModified();
+                order[i] = i;
+            }
+            Arrays.sort(order, (o1, o2) ->
+                    Long.compare(lastModified[o1], lastModified[o2]));
+            for (int i = 0; i < order.length && size > maxSize; i++) {
+                File file = files[order[i]];
+                long length = file.length();
+                if (file.delete()) {
+                    Log.d(TAG, "Evicted " + file.getName());
+                    size -= length;
+                }
+            }
+        }
+    }
+
+    private File getFile(String checksum) {
+        return new File(this.root, checksum.toLowerCase(Locale.ROOT) + ".zip");
+    }
+}
@@ -2,6 +2,7 @@ package com.fox2code.mmm.manager;
 
 import android.util.Log;
 
+import com.fox2code.mmm.repo.FreshnessPolicy;
 import com.fox2code.mmm.utils.FastException;
 import com.fox2code.mmm.utils.Http;
 import com.fox2code.mmm.utils.PropUtils;
@@ -25,16 +26,17 @@ public class LocalModuleInfo extends ModuleInfo {
 
     public void checkModuleUpdate() {
         if (this.updateJson != null) {
+            final long ttl = FreshnessPolicy.getModuleUpdateTtl();
             try {
-                JSONObject jsonUpdate = new JSONObject(new String(Http.doHttpGet(
-                        this.updateJson, true), StandardCharsets.UTF_8));
+                JSONObject jsonUpdate = new JSONObject(new String(Http.doHttpGetCached(
+                        this.updateJson, ttl), StandardCharsets.UTF_8));
                 this.updateVersion = jsonUpdate.optString("version");
                 this.updateVersionCode = jsonUpdate.getLong("versionCode");
                 this.updateZipUrl = jsonUpdate.getString("zipUrl");
                 this.updateChangeLogUrl = jsonUpdate.optString("changelog");
                 try {
-                    String desc = new String(Http.doHttpGet(
-                            this.updateChangeLogUrl, true), StandardCharsets.UTF_8);
+                    String desc = new String(Http.doHttpGetCached(
+                            this.updateChangeLogUrl, ttl, Http.CACHE_DOCUMENTS), StandardCharsets.UTF_8);
                     if (desc.length() > 1000) {
                         desc = desc.substring(0, 1000);
                     }
@@ -36,10 +36,10 @@ public class MarkdownActivity extends CompatActivity {
     private static byte[] getRawMarkdown(String url) throws IOException {
         String newUrl = redirects.get(url);
         if (newUrl != null && !newUrl.equals(url)) {
-            return Http.doHttpGet(newUrl, true);
+            return Http.doHttpGetDocument(newUrl);
         }
         try {
-            return Http.doHttpGet(url, true);
+            return Http.doHttpGetDocument(url);
         } catch (IOException e) {
             // Workaround GitHub README.md case sensitivity issue
             if (url.startsWith("https://raw.githubusercontent.com/") &&
@@ -48,7 +48,7 @@ public class MarkdownActivity extends CompatActivity {
                 for (String suffix : variants) {
                     newUrl = prefix + suffix;
                     try { // Try with lowercase version
-                        byte[] rawMarkdown = Http.doHttpGet(prefix + suffix, true);
+                        byte[] rawMarkdown = Http.doHttpGetDocument(prefix + suffix);
                         redirects.put(url, newUrl); // Avoid retries
                         return rawMarkdown;
                     } catch (IOException ignored) {}
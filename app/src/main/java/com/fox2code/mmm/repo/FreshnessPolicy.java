@@ -0,0 +1,52 @@
+package com.fox2code.mmm.repo;
+
+import android.content.SharedPreferences;
+
+import com.fox2code.mmm.MainApplication;
+
+/**
+ * Decide how long fetched data is considered up to date, data that is
+ * still fresh is served from cache without doing any network request.
+ * TTLs can be configured in minutes with the {@code pref_*_ttl} preferences.
+ */
+public final class FreshnessPolicy {
+    private static final long MINUTE = 60_000L;
+    private static final int DEFAULT_REPO_TTL = 15;
+    private static final int DEFAULT_COMPAT_TTL = 60;
+    private static final int DEFAULT_MODULE_UPDATE_TTL = 30;
+
+    private FreshnessPolicy() {}
+
+    public static long getRepoTtl() {
+        return getTtl("pref_repo_ttl", DEFAULT_REPO_TTL);
+    }
+
+    public static long getCompatTtl() {
+        return getTtl("pref_compat_ttl", DEFAULT_COMPAT_TTL);
+    }
+
+    public static long getModuleUpdateTtl() {
+        return getTtl("pref_module_update_ttl", DEFAULT_MODULE_UPDATE_TTL);
+    }
+
+    /**
+     * @param lastFetch time of the last successful fetch, 0 if never fetched
+     */
+    public static boolean isFresh(long lastFetch, long ttl) {
+        long now = System.currentTimeMillis();
+        // Don't allow time travel
+        return lastFetch > 0 && lastFetch <= now && now - lastFetch < ttl;
+    }
+
+    private static long getTtl(String key, int defaultMinutes) {
+        SharedPreferences sharedPreferences = MainApplication.getSharedPreferences();
+        int minutes;
+        try {
+            minutes = Integer.parseInt(sharedPreferences.getString(
+                    key, Integer.toString(defaultMinutes)));
+        } catch (RuntimeException e) {
+            minutes = defaultMinutes;
+        }
+        return Math.max(minutes, 0) * MINUTE;
+    }
+}
@@ -1,12 +1,15 @@
 package com.fox2code.mmm.repo;
 
 import android.content.SharedPreferences;
+import android.util.JsonReader;
+import android.util.JsonToken;
 
 import com.fox2code.mmm.BuildConfig;
 import com.fox2code.mmm.MainApplication;
 import com.fox2code.mmm.R;
 import com.fox2code.mmm.manager.ModuleInfo;
 import com.fox2code.mmm.utils.Files;
+import com.fox2code.mmm.utils.Http;
 import com.fox2code.mmm.utils.PropUtils;
 
 import org.json.JSONArray;
@@ -14,12 +17,17 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 
 public class RepoData {
     private static final String TAG = "RepoData";
@@ -28,10 +36,16 @@ public class RepoData {
     public final String id;
     public final File cacheRoot;
     public final SharedPreferences cachedPreferences;
+    public final RepoHealth health;
+    private final RepoMirrors mirrors;
     public final File metaDataCache;
     public final HashMap<String, RepoModule> moduleHashMap;
+    // Immutable copy of moduleHashMap, replaced when a repo update finish
+    private volatile Map<String, RepoModule> modules = Collections.emptyMap();
     public long lastUpdate;
     public String name;
+    // Optional archive containing all module.prop files of the repo
+    public String metadataArchiveUrl;
     private boolean enabled; // Cache for speed
 
     protected RepoData(String url, File cacheRoot, SharedPreferences cachedPreferences) {
@@ -39,6 +53,10 @@ public class RepoData {
         this.id = RepoManager.internalIdOfUrl(url);
         this.cacheRoot = cacheRoot;
         this.cachedPreferences = cachedPreferences;
+        this.health = new RepoHealth(this.id, cachedPreferences);
+        String[] mirrors = RepoManager.getMirrorsOf(url);
+        this.mirrors = mirrors == null ? null :
+                new RepoMirrors(cachedPreferences, mirrors);
         this.metaDataCache = new File(cacheRoot, "modules.json");
         this.moduleHashMap = new HashMap<>();
         this.name = this.url; // Set url as default name
@@ -52,14 +70,17 @@ public class RepoData {
                 if (this.lastUpdate > System.currentTimeMillis()) {
                     this.lastUpdate = 0; // Don't allow time travel
                 }
-                try {
-                    List<RepoModule> modules = this.populate(new JSONObject(
-                            new String(Files.read(this.metaDataCache), StandardCharsets.UTF_8)));
+                // Use the snapshot if possible, it's way faster to load.
+                if (RepoSnapshot.read(this)) return;
+                try (JsonReader jsonReader = new JsonReader(new InputStreamReader(
+                        new FileInputStream(this.metaDataCache), StandardCharsets.UTF_8))) {
+                    List<RepoModule> modules = this.populate(jsonReader);
                     for (RepoModule repoModule : modules) {
                         if (!this.tryLoadMetadata(repoModule)) {
                             repoModule.moduleInfo.flags &= ~ModuleInfo.FLAG_METADATA_INVALID;
                         }
                     }
+                    RepoSnapshot.write(this);
                 } catch (Exception e) {
                     this.metaDataCache.delete();
                 }
@@ -71,68 +92,275 @@ public class RepoData {
         return true;
     }
 
-    protected List<RepoModule> populate(JSONObject jsonObject) throws JSONException {
-        List<RepoModule> newModules = new ArrayList<>();
+    // Key of the module list in the index
+    protected String getIndexArrayKey() {
+        return "modules";
+    }
+
+    // Key of the module id in index entries
+    protected String getIndexIdKey() {
+        return "id";
+    }
+
+    /**
+     * Modules read from an index, only applied to the repo once the whole
+     * index is read, new and changed modules are copies of the published ones.
+     */
+    protected static final class IndexUpdate {
+        public final HashMap<String, RepoModule> modules = new HashMap<>();
+        // Modules which metadata need to be loaded
+        public final List<RepoModule> outdated = new ArrayList<>();
+
+        IndexUpdate() {}
+    }
+
+    protected interface IndexEntryHandler {
+        void onEntry(JSONObject entry) throws IOException, JSONException;
+    }
+
+    protected List<RepoModule> populate(JsonReader jsonReader) throws IOException, JSONException {
+        IndexUpdate indexUpdate = new IndexUpdate();
+        // Entries are staged as they are read, so the index is never fully in memory
+        JSONObject jsonObject = readIndex(jsonReader, this.getIndexArrayKey(),
+                entry -> this.stageModule(indexUpdate, entry));
+        this.setDeltaUrl(jsonObject.optString("delta_url", ""));
+        return this.applyIndex(jsonObject, indexUpdate);
+    }
+
+    /**
+     * Add an index entry to the update, without modifying the repo.
+     */
+    protected void stageModule(IndexUpdate indexUpdate, JSONObject module) throws JSONException {
+        String moduleId = module.getString("id");
+        // Deny remote modules ids shorter than 3 chars
+        if (moduleId.length() < 3 || indexUpdate.modules.containsKey(moduleId)) return;
+        long moduleLastUpdate = module.getLong("last_update");
+        String moduleNotesUrl = module.getString("notes_url");
+        String modulePropsUrl = this.mirrorUrl(module.getString("prop_url"));
+        String moduleZipUrl = this.mirrorUrl(module.getString("zip_url"));
+        String moduleChecksum = module.optString("checksum");
+        String moduleStars = module.optString("stars");
+        RepoModule repoModule = this.moduleHashMap.get(moduleId);
+        int qualityText = repoModule == null ? 0 : repoModule.qualityText;
+        int qualityValue = repoModule == null ? 0 : repoModule.qualityValue;
+        if (!moduleStars.isEmpty()) {
+            try {
+                qualityValue = Integer.parseInt(moduleStars);
+                qualityText = R.string.module_stars;
+            } catch (NumberFormatException ignored) {}
+        }
+        boolean outdated = repoModule == null ||
+                repoModule.lastUpdated < moduleLastUpdate ||
+                repoModule.moduleInfo.hasFlag(ModuleInfo.FLAG_METADATA_INVALID);
+        // Modules may already be published, so changes are made to a copy
+        if (outdated || repoModule.lastUpdated != moduleLastUpdate ||
+                !Objects.equals(repoModule.notesUrl, moduleNotesUrl) ||
+                !Objects.equals(repoModule.propUrl, modulePropsUrl) ||
+                !Objects.equals(repoModule.zipUrl, moduleZipUrl) ||
+                !Objects.equals(repoModule.checksum, moduleChecksum) ||
+                repoModule.qualityText != qualityText ||
+                repoModule.qualityValue != qualityValue) {
+            repoModule = repoModule == null ?
+                    new RepoModule(this, moduleId) : new RepoModule(repoModule);
+            repoModule.lastUpdated = moduleLastUpdate;
+            repoModule.notesUrl = moduleNotesUrl;
+            repoModule.propUrl = modulePropsUrl;
+            repoModule.zipUrl = moduleZipUrl;
+            repoModule.checksum = moduleChecksum;
+            repoModule.qualityText = qualityText;
+            repoModule.qualityValue = qualityValue;
+            if (outdated) indexUpdate.outdated.add(repoModule);
+        }
+        indexUpdate.modules.put(moduleId, repoModule);
+    }
+
+    /**
+     * Apply a fully read index to the repo.
+     * @param jsonObject top level values of the index
+     * @return modules which metadata need to be loaded
+     */
+    protected List<RepoModule> applyIndex(JSONObject jsonObject,
+                                          IndexUpdate indexUpdate) throws JSONException {
+        String name = jsonObject.getString("name").trim();
+        String nameForModules = name.endsWith(" (Official)") ?
+                name.substring(0, name.length() - 11) : name;
+        long lastUpdate = jsonObject.getLong("last_update");
         synchronized (this.populateLock) {
-            String name = jsonObject.getString("name").trim();
-            String nameForModules = name.endsWith(" (Official)") ?
-                    name.substring(0, name.length() - 11) : name;
-            long lastUpdate = jsonObject.getLong("last_update");
+            this.applyModules(indexUpdate, nameForModules);
+            // Update final metadata
+            this.name = name;
+            this.lastUpdate = lastUpdate;
+            this.metadataArchiveUrl = this.resolveUrl(
+                    jsonObject.optString("metadata_archive", ""));
+        }
+        return indexUpdate.outdated;
+    }
+
+    /**
+     * Replace modules of the repo by the staged ones, with {@code repoName} set.
+     */
+    protected void applyModules(IndexUpdate indexUpdate, String repoName) {
+        synchronized (this.populateLock) {
+            for (Map.Entry<String, RepoModule> entry : indexUpdate.modules.entrySet()) {
+                RepoModule repoModule = entry.getValue();
+                if (repoName.equals(repoModule.repoName)) continue;
+                // Unchanged modules are reused, don't modify them if published
+                if (this.moduleHashMap.get(repoModule.id) == repoModule) {
+                    repoModule = new RepoModule(repoModule);
+                    entry.setValue(repoModule);
+                }
+                repoModule.repoName = repoName;
+            }
+            // Remove no longer existing modules
             for (RepoModule repoModule : this.moduleHashMap.values()) {
-                repoModule.processed = false;
+                if (!indexUpdate.modules.containsKey(repoModule.id)) {
+                    new File(this.cacheRoot, repoModule.id + ".prop").delete();
+                }
             }
-            JSONArray array = jsonObject.getJSONArray("modules");
-            int len = array.length();
-            for (int i = 0; i < len; i++) {
-                JSONObject module = array.getJSONObject(i);
-                String moduleId = module.getString("id");
-                // Deny remote modules ids shorter than 3 chars
-                if (moduleId.length() < 3) continue;
-                long moduleLastUpdate = module.getLong("last_update");
-                String moduleNotesUrl = module.getString("notes_url");
-                String modulePropsUrl = module.getString("prop_url");
-                String moduleZipUrl = module.getString("zip_url");
-                String moduleChecksum = module.optString("checksum");
-                String moduleStars = module.optString("stars");
-                RepoModule repoModule = this.moduleHashMap.get(moduleId);
-                if (repoModule == null) {
-                    repoModule = new RepoModule(this, moduleId);
-                    this.moduleHashMap.put(moduleId, repoModule);
-                    newModules.add(repoModule);
-                } else {
-                    if (repoModule.lastUpdated < moduleLastUpdate ||
-                            repoModule.moduleInfo.hasFlag(ModuleInfo.FLAG_METADATA_INVALID)) {
-                        newModules.add(repoModule);
+            this.replaceModules(indexUpdate.modules);
+        }
+    }
+
+    /**
+     * Read a repo index without building it in memory, all top level values
+     * are returned as a JSONObject except for {@code arrayKey} entries that
+     * are given to {@code handler} as they are read, the index must contain
+     * {@code arrayKey}.
+     */
+    protected static JSONObject readIndex(JsonReader jsonReader, String arrayKey,
+                                          IndexEntryHandler handler)
+            throws IOException, JSONException {
+        JSONObject jsonObject = new JSONObject();
+        boolean hasArray = false;
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()) {
+            String name = jsonReader.nextName();
+            if (name.equals(arrayKey) && jsonReader.peek() == JsonToken.BEGIN_ARRAY) {
+                hasArray = true;
+                jsonReader.beginArray();
+                while (jsonReader.hasNext()) {
+                    if (jsonReader.peek() == JsonToken.BEGIN_OBJECT) {
+                        handler.onEntry(readObject(jsonReader));
+                    } else {
+                        throw new JSONException("Invalid entry in " + arrayKey);
                     }
                 }
-                repoModule.processed = true;
-                repoModule.repoName = nameForModules;
-                repoModule.lastUpdated = moduleLastUpdate;
-                repoModule.notesUrl = moduleNotesUrl;
-                repoModule.propUrl = modulePropsUrl;
-                repoModule.zipUrl = moduleZipUrl;
-                repoModule.checksum = moduleChecksum;
-                if (!moduleStars.isEmpty()) {
-                    try {
-                        repoModule.qualityValue = Integer.parseInt(moduleStars);
-                        repoModule.qualityText = R.string.module_stars;
-                    } catch (NumberFormatException ignored) {}
+                jsonReader.endArray();
+            } else {
+                jsonObject.put(name, readValue(jsonReader));
+            }
+        }
+        jsonReader.endObject();
+        if (!hasArray) throw new JSONException("No value for " + arrayKey);
+        return jsonObject;
+    }
+
+    private static JSONObject readObject(JsonReader jsonReader)
+            throws IOException, JSONException {
+        JSONObject jsonObject = new JSONObject();
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()) {
+            jsonObject.put(jsonReader.nextName(), readValue(jsonReader));
+        }
+        jsonReader.endObject();
+        return jsonObject;
+    }
+
+    private static Object readValue(JsonReader jsonReader) throws IOException, JSONException {
+        switch (jsonReader.peek()) {
+            case BEGIN_OBJECT:
+                return readObject(jsonReader);
+            case BEGIN_ARRAY:
+                JSONArray jsonArray = new JSONArray();
+                jsonReader.beginArray();
+                while (jsonReader.hasNext()) {
+                    jsonArray.put(readValue(jsonReader));
+                }
+                jsonReader.endArray();
+                return jsonArray;
+            case BOOLEAN:
+                return jsonReader.nextBoolean();
+            case NULL:
+                jsonReader.nextNull();
+                return JSONObject.NULL;
+            case NUMBER:
+                // Keep numbers as numbers, so rewritten indexes are unchanged
+                String number = jsonReader.nextString();
+                try {
+                    return Long.parseLong(number);
+                } catch (NumberFormatException e) {
+                    return Double.parseDouble(number);
                 }
+            case STRING:
+                return jsonReader.nextString();
+            default:
+                throw new JSONException("Unexpected token " + jsonReader.peek());
+        }
+    }
+
+    /**
+     * @return modules of this repo as of the last finished update, safe to use from any thread
+     */
+    public Map<String, RepoModule> getModules() {
+        return this.modules;
+    }
+
+    boolean isPublished(RepoModule repoModule) {
+        return this.modules.get(repoModule.id) == repoModule;
+    }
+
+    void publishModules() {
+        synchronized (this.populateLock) {
+            this.modules = Collections.unmodifiableMap(new HashMap<>(this.moduleHashMap));
+        }
+    }
+
+    /**
+     * Replace the content of {@link #moduleHashMap} by the updated modules.
+     */
+    protected void replaceModules(Map<String, RepoModule> modules) {
+        synchronized (this.populateLock) {
+            this.moduleHashMap.clear();
+            this.moduleHashMap.putAll(modules);
+        }
+    }
+
+    /**
+     * Replace a module by a copy with loaded metadata, including in published modules.
+     * @return false if the module was replaced by a repo update meanwhile
+     */
+    boolean replaceModule(RepoModule repoModule, RepoModule loaded) {
+        synchronized (this.populateLock) {
+            if (this.moduleHashMap.get(repoModule.id) != repoModule) return false;
+            this.moduleHashMap.put(repoModule.id, loaded);
+            if (this.modules.get(repoModule.id) == repoModule) {
+                HashMap<String, RepoModule> modules = new HashMap<>(this.modules);
+                modules.put(repoModule.id, loaded);
+                this.modules = Collections.unmodifiableMap(modules);
             }
-            // Remove no longer existing modules
-            Iterator<RepoModule> moduleInfoIterator = this.moduleHashMap.values().iterator();
-            while (moduleInfoIterator.hasNext()) {
-                RepoModule repoModule = moduleInfoIterator.next();
-                if (!repoModule.processed) {
-                    new File(this.cacheRoot, repoModule.id + ".prop").delete();
-                    moduleInfoIterator.remove();
+            return true;
+        }
+    }
+
+    /**
+     * Replace modules which metadata failed to load by copies, so they can be
+     * loaded again without modifying published modules.
+     * @return the copies
+     */
+    List<RepoModule> copyInvalidModules() {
+        List<RepoModule> invalidModules = new ArrayList<>();
+        synchronized (this.populateLock) {
+            for (RepoModule repoModule : this.moduleHashMap.values()) {
+                if (repoModule.moduleInfo.hasFlag(ModuleInfo.FLAG_METADATA_INVALID) &&
+                        repoModule.propUrl != null && !repoModule.propUrl.isEmpty()) {
+                    invalidModules.add(new RepoModule(repoModule));
                 }
             }
-            // Update final metadata
-            this.name = name;
-            this.lastUpdate = lastUpdate;
+            for (RepoModule repoModule : invalidModules) {
+                this.moduleHashMap.put(repoModule.id, repoModule);
+            }
         }
-        return newModules;
+        return invalidModules;
     }
 
     protected boolean isEnabledByDefault(String id) {
@@ -163,6 +391,124 @@ public class RepoData {
         return false;
     }
 
+    String[] getIndexUrls() {
+        return this.mirrors == null ?
+                new String[]{this.url} : this.mirrors.getIndexUrls();
+    }
+
+    void reportIndexUrl(String url, long latency, boolean success) {
+        if (this.mirrors != null) this.mirrors.report(url, latency, success);
+    }
+
+    // Use the same mirror as the index if possible
+    protected String mirrorUrl(String url) {
+        return this.mirrors == null ? url : this.mirrors.rewrite(url);
+    }
+
+    private String resolveUrl(String url) {
+        if (url.isEmpty()) return null;
+        try {
+            return new URI(this.url).resolve(url).toString();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    void setDeltaUrl(String deltaUrl) {
+        deltaUrl = this.resolveUrl(deltaUrl);
+        if (Objects.equals(deltaUrl,
+                this.cachedPreferences.getString("index_delta_url", null))) return;
+        if (deltaUrl == null) {
+            this.cachedPreferences.edit().remove("index_delta_url").apply();
+        } else {
+            this.cachedPreferences.edit().putString("index_delta_url", deltaUrl).apply();
+        }
+    }
+
+    /**
+     * @return the url to get changes since the cached index, or null if not supported
+     */
+    String getDeltaUrl() {
+        String deltaUrl = this.cachedPreferences.getString("index_delta_url", null);
+        if (deltaUrl == null || this.lastUpdate <= 0 ||
+                !this.metaDataCache.exists()) return null;
+        return deltaUrl + (deltaUrl.indexOf('?') == -1 ? '?' : '&') +
+                "since=" + this.getDeltaSince();
+    }
+
+    // Value of the since parameter, in the same unit as the repo index
+    protected long getDeltaSince() {
+        return this.lastUpdate;
+    }
+
+    /**
+     * Mark the module metadata as outdated, so it can be loaded later.
+     */
+    void invalidateMetadata(RepoModule repoModule) {
+        synchronized (repoModule) {
+            // Loads started before this must not mark the module as loaded
+            repoModule.metadataGeneration++;
+            repoModule.moduleInfo.flags |= ModuleInfo.FLAG_METADATA_INVALID;
+            repoModule.metadataPending = true;
+        }
+        // Don't reload outdated metadata on next start
+        new File(this.cacheRoot, repoModule.id + ".prop").delete();
+    }
+
+    // Time the repo can be served from cache after a successful check
+    protected long getRefreshTtl() {
+        return FreshnessPolicy.getRepoTtl();
+    }
+
+    boolean isFresh() {
+        return this.metaDataCache.exists() && FreshnessPolicy.isFresh(
+                this.cachedPreferences.getLong("last_check", 0), this.getRefreshTtl());
+    }
+
+    void setLastCheck(long lastCheck) {
+        this.cachedPreferences.edit().putLong("last_check", lastCheck).apply();
+    }
+
+    /**
+     * Validators are only sent to the mirror the cached index came from,
+     * as mirrors may not have the same ETag for the same index.
+     */
+    Http.Validators getIndexValidators(String url) {
+        Http.Validators validators = new Http.Validators();
+        // Validators are useless if we don't have the data they validate
+        if (this.metaDataCache.exists() && url.equals(
+                this.cachedPreferences.getString("index_validators_url", null))) {
+            validators.eTag = this.cachedPreferences.getString("index_etag", null);
+            validators.lastModified =
+                    this.cachedPreferences.getString("index_last_modified", null);
+        }
+        return validators;
+    }
+
+    /**
+     * @param url mirror the cached index came from, null to forget validators
+     */
+    void setIndexValidators(String url, Http.Validators validators) {
+        SharedPreferences.Editor editor = this.cachedPreferences.edit();
+        if (url == null || validators == null) {
+            editor.remove("index_validators_url");
+            validators = new Http.Validators();
+        } else {
+            editor.putString("index_validators_url", url);
+        }
+        if (validators.eTag == null) {
+            editor.remove("index_etag");
+        } else {
+            editor.putString("index_etag", validators.eTag);
+        }
+        if (validators.lastModified == null) {
+            editor.remove("index_last_modified");
+        } else {
+            editor.putString("index_last_modified", validators.lastModified);
+        }
+        editor.apply();
+    }
+
     public String getNameOrFallback(String fallback) {
         return this.name == null ||
                 this.name.equals(this.url) ?
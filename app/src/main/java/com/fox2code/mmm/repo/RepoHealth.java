@@ -0,0 +1,104 @@
+package com.fox2code.mmm.repo;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Track the health of a repo, and stop querying it for a while
+ * after repeated failures (Circuit breaker with exponential backoff).
+ * The cached catalog of the repo is used while the circuit is open.
+ */
+public final class RepoHealth {
+    private static final String TAG = "RepoHealth";
+    // Number of consecutive failures needed to open the circuit
+    private static final int FAILURE_THRESHOLD = 2;
+    private static final long BASE_BACKOFF = 30_000L;
+    private static final long MAX_BACKOFF = 3_600_000L;
+    private static final Random random = new Random();
+    private final String id;
+    private final SharedPreferences cachedPreferences;
+    private int consecutiveFailures;
+    private long openUntil;
+    private long averageLatency = -1;
+
+    RepoHealth(String id, SharedPreferences cachedPreferences) {
+        this.id = id;
+        this.cachedPreferences = cachedPreferences;
+        this.consecutiveFailures = cachedPreferences.getInt("health_failures", 0);
+        this.openUntil = cachedPreferences.getLong("health_open_until", 0);
+        if (this.openUntil - System.currentTimeMillis() > MAX_BACKOFF) {
+            this.openUntil = 0; // Don't allow time travel
+        }
+    }
+
+    /**
+     * @return true if the repo can be queried, false if the circuit is open
+     */
+    public synchronized boolean allowRequest() {
+        return System.currentTimeMillis() >= this.openUntil;
+    }
+
+    public synchronized long getOpenUntil() {
+        return this.openUntil;
+    }
+
+    /**
+     * @return the smoothed latency of the repo index fetch in ms, or -1 if unknown
+     */
+    public synchronized long getAverageLatency() {
+        return this.averageLatency;
+    }
+
+    public synchronized void onSuccess(long latency) {
+        this.recordLatency(latency);
+        if (this.consecutiveFailures != 0) {
+            this.consecutiveFailures = 0;
+            this.save();
+        }
+    }
+
+    public synchronized void onFailure(long latency) {
+        this.recordLatency(latency);
+        this.consecutiveFailures++;
+        if (this.consecutiveFailures >= FAILURE_THRESHOLD) {
+            int exponent = Math.min(this.consecutiveFailures - FAILURE_THRESHOLD, 16);
+            long backoff = Math.min(BASE_BACKOFF << exponent, MAX_BACKOFF);
+            // Add jitter so failing repos don't all retry at the same time
+            backoff = backoff / 2 + (long) (random.nextDouble() * (backoff / 2));
+            this.openUntil = Math.max(this.openUntil,
+                    System.currentTimeMillis() + backoff);
+            Log.w(TAG, "Repo " + this.id + " failed " + this.consecutiveFailures +
+                    " times in a row, skipping it for " + (backoff / 1000) + "s");
+        }
+        this.save();
+    }
+
+    /**
+     * Open the circuit for the given time, used when the server asked us to slow down.
+     */
+    public synchronized void openFor(long delay) {
+        this.openUntil = Math.max(this.openUntil, System.currentTimeMillis() + delay);
+        this.save();
+    }
+
+    /**
+     * Same as {@link #openFor(long)} but not persisted, for short delays.
+     */
+    public synchronized void throttle(long delay) {
+        this.openUntil = Math.max(this.openUntil, System.currentTimeMillis() + delay);
+    }
+
+    private void recordLatency(long latency) {
+        if (latency < 0) return;
+        this.averageLatency = this.averageLatency == -1 ? latency :
+                (this.averageLatency * 3 + latency) / 4;
+    }
+
+    private void save() {
+        this.cachedPreferences.edit()
+                .putInt("health_failures", this.consecutiveFailures)
+                .putLong("health_open_until", this.openUntil).apply();
+    }
+}
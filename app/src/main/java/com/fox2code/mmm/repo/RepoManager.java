@@ -7,16 +7,26 @@ import android.util.Log;
 import com.fox2code.mmm.MainApplication;
 import com.fox2code.mmm.androidacy.AndroidacyRepoData;
 import com.fox2code.mmm.manager.ModuleInfo;
-import com.fox2code.mmm.utils.Files;
 import com.fox2code.mmm.utils.Hashes;
-import com.fox2code.mmm.utils.Http;
 import com.fox2code.mmm.utils.PropUtils;
 
 import java.io.File;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class RepoManager {
     private static final String TAG = "RepoManager";
@@ -34,6 +44,8 @@ public final class RepoManager {
 
     private static final Object lock = new Object();
     private static volatile RepoManager INSTANCE;
+    // Static so the UI can set it without having to load the repos
+    private static volatile MetadataListener metadataListener;
 
     public static RepoManager getINSTANCE() {
         if (INSTANCE == null) {
@@ -53,27 +65,41 @@ public final class RepoManager {
 
     private final MainApplication mainApplication;
     private final LinkedHashMap<String, RepoData> repoData;
-    private final HashMap<String, RepoModule> modules;
+    // Immutable, replaced as a whole when a repo update finish
+    private volatile Map<String, RepoModule> modules;
+    private final Object modulesLock = new Object();
     private final AndroidacyRepoData androidacyRepoData;
+    private final RepoMetadataLoader metadataLoader;
+    private SharedPreferences repoStatePreferences;
 
     private RepoManager(MainApplication mainApplication) {
         this.mainApplication = mainApplication;
         this.repoData = new LinkedHashMap<>();
-        this.modules = new HashMap<>();
+        this.metadataLoader = new RepoMetadataLoader(this::onMetadataLoaded);
         // We do not have repo list config yet.
         this.addRepoData(MAGISK_ALT_REPO);
         this.androidacyRepoData =
                 this.addAndroidacyRepoData();
         // Populate default cache
+        HashMap<String, RepoModule> modules = new HashMap<>();
+        boolean lazyMetadata = MainApplication.isLazyMetadataEnabled();
+        ArrayList<RepoModule> toLoadLater = new ArrayList<>();
         for (RepoData repoData:this.repoData.values()) {
+            repoData.publishModules();
             for (RepoModule repoModule:repoData.moduleHashMap.values()) {
-                if (!repoModule.moduleInfo.hasFlag(ModuleInfo.FLAG_METADATA_INVALID)) {
-                    RepoModule registeredRepoModule = this.modules.get(repoModule.id);
+                if (repoModule.metadataPending && lazyMetadata) {
+                    // Placeholder saved before its metadata could be loaded
+                    toLoadLater.add(repoModule);
+                    if (!modules.containsKey(repoModule.id)) {
+                        modules.put(repoModule.id, repoModule);
+                    }
+                } else if (!repoModule.moduleInfo.hasFlag(ModuleInfo.FLAG_METADATA_INVALID)) {
+                    RepoModule registeredRepoModule = modules.get(repoModule.id);
                     if (registeredRepoModule == null) {
-                        this.modules.put(repoModule.id, repoModule);
+                        modules.put(repoModule.id, repoModule);
                     } else if (repoModule.moduleInfo.versionCode >
                             registeredRepoModule.moduleInfo.versionCode) {
-                        this.modules.put(repoModule.id, repoModule);
+                        modules.put(repoModule.id, repoModule);
                     }
                 } else {
                     Log.e(TAG, "Detected module with invalid metadata: " +
@@ -81,6 +107,10 @@ public final class RepoManager {
                 }
             }
         }
+        this.modules = Collections.unmodifiableMap(modules);
+        for (RepoModule repoModule : toLoadLater) {
+            this.metadataLoader.request(repoModule, RepoMetadataLoader.PRIORITY_BACKGROUND);
+        }
     }
 
     public RepoData get(String url) {
@@ -93,7 +123,7 @@ public final class RepoManager {
 
     public RepoData addOrGet(String url) {
         RepoData repoData;
-        synchronized (this.repoUpdateLock) {
+        synchronized (this.repoScanLock) {
             repoData = this.repoData.get(url);
             if (repoData == null) {
                 if (ANDROIDACY_MAGISK_REPO_ENDPOINT.equals(url)) {
@@ -106,114 +136,322 @@ public final class RepoManager {
         return repoData;
     }
 
+    /**
+     * @return index urls of enabled repos, including their mirrors
+     */
+    public List<String> getEnabledRepoUrls() {
+        ArrayList<String> urls = new ArrayList<>();
+        for (RepoData repoData : this.repoData.values()) {
+            if (!repoData.isEnabled()) continue;
+            String[] mirrors = getMirrorsOf(repoData.url);
+            if (mirrors == null) {
+                urls.add(repoData.url);
+            } else {
+                urls.addAll(Arrays.asList(mirrors));
+            }
+        }
+        return urls;
+    }
+
     public interface UpdateListener {
         void update(double value);
     }
 
+    // Max time to wait for a repo update, the update continue in background after that.
+    public static final long UPDATE_TIMEOUT_SECONDS = 60;
     private final Object repoUpdateLock = new Object();
-    private boolean repoUpdating;
-    private boolean repoLastResult = true;
+    private final Object repoScanLock = new Object();
+    private RepoUpdateFuture repoUpdateFuture;
+    private volatile boolean repoLastResult = true;
 
     public boolean isRepoUpdating() {
-        return this.repoUpdating;
+        RepoUpdateFuture repoUpdateFuture = this.repoUpdateFuture;
+        return repoUpdateFuture != null && !repoUpdateFuture.isDone();
     }
 
+    // Pause execution until the update is completed if one is currently running
     public final void afterUpdate() {
-        if (this.repoUpdating) synchronized (this.repoUpdateLock) {}
+        RepoUpdateFuture repoUpdateFuture;
+        synchronized (this.repoUpdateLock) {
+            repoUpdateFuture = this.repoUpdateFuture;
+        }
+        if (repoUpdateFuture != null) {
+            repoUpdateFuture.await(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
     }
 
     public final void runAfterUpdate(Runnable runnable) {
+        this.afterUpdate();
+        runnable.run();
+    }
+
+    /**
+     * Start a repo update in background, or join the one currently running.
+     * The listener, if not null, receive the progress of the update.
+     */
+    public RepoUpdateFuture requestUpdate(UpdateListener updateListener) {
+        return this.requestUpdate(updateListener, false);
+    }
+
+    /**
+     * Same as {@link #requestUpdate(UpdateListener)}, but if {@code force} is
+     * true, repos are fetched even if they are still fresh.
+     */
+    public RepoUpdateFuture requestUpdate(UpdateListener updateListener, boolean force) {
+        RepoUpdateFuture repoUpdateFuture;
+        boolean start = false;
         synchronized (this.repoUpdateLock) {
-            runnable.run();
+            repoUpdateFuture = this.repoUpdateFuture;
+            if (repoUpdateFuture == null || repoUpdateFuture.isDone()) {
+                repoUpdateFuture = RepoUpdateFuture.create(listener -> {
+                    synchronized (this.repoScanLock) {
+                        return this.repoLastResult = this.scanInternal(listener, force);
+                    }
+                });
+                this.repoUpdateFuture = repoUpdateFuture;
+                start = true;
+            }
+            repoUpdateFuture.addUpdateListener(updateListener);
         }
+        if (start) new Thread(repoUpdateFuture, "Repo update thread").start();
+        return repoUpdateFuture;
     }
 
     // MultiThread friendly method
     public final void update(UpdateListener updateListener) {
-        if (!this.repoUpdating) {
-            // Do scan
-            synchronized (this.repoUpdateLock) {
-                this.repoUpdating = true;
-                try {
-                    this.repoLastResult =
-                            this.scanInternal(updateListener);
-                } finally {
-                    this.repoUpdating = false;
-                }
-            }
-        } else {
-            // Wait for current scan
-            synchronized (this.repoUpdateLock) {}
+        RepoUpdateFuture repoUpdateFuture = this.requestUpdate(updateListener);
+        try {
+            repoUpdateFuture.await(UPDATE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } finally {
+            repoUpdateFuture.removeUpdateListener(updateListener);
         }
     }
 
     private static final double STEP1 = 0.1D;
     private static final double STEP2 = 0.8D;
     private static final double STEP3 = 0.1D;
+    // Index fetches are mostly waiting on network, but keep it bounded for custom repos
+    private static final int MAX_INDEX_FETCH_THREADS = 4;
 
-    private boolean scanInternal(UpdateListener updateListener) {
-        this.modules.clear();
+    private boolean scanInternal(UpdateListener updateListener, boolean force) {
+        // Build the new catalog on the side, readers keep using the old one until it's done
+        HashMap<String, RepoModule> modules = new HashMap<>();
         updateListener.update(0D);
         RepoData[] repoDatas = this.repoData.values().toArray(new RepoData[0]);
         RepoUpdater[] repoUpdaters = new RepoUpdater[repoDatas.length];
-        int moduleToUpdate = 0;
-        for (int i = 0; i < repoDatas.length; i++) {
-            moduleToUpdate += (repoUpdaters[i] =
-                    new RepoUpdater(repoDatas[i])).fetchIndex();
-            updateListener.update(STEP1 / repoDatas.length * (i + 1));
+        boolean lazyMetadata = MainApplication.isLazyMetadataEnabled();
+        ArrayList<RepoModule> toLoadLater = new ArrayList<>();
+        boolean[] loaded;
+        try {
+            int moduleToUpdate = this.fetchIndexes(
+                    repoDatas, repoUpdaters, updateListener, force);
+            checkCancelled();
+            ArrayList<RepoModule> toFetch = new ArrayList<>(moduleToUpdate);
+            for (RepoUpdater repoUpdater : repoUpdaters) {
+                for (RepoModule repoModule : repoUpdater.toUpdate()) {
+                    // Only prop files are worth loading later
+                    if (lazyMetadata && repoModule.propUrl != null &&
+                            !repoModule.propUrl.isEmpty()) {
+                        repoModule.repoData.invalidateMetadata(repoModule);
+                    } else {
+                        toFetch.add(repoModule);
+                    }
+                }
+            }
+            loaded = RepoMetadataFetcher.fetchAll(toFetch, (done, total) ->
+                    updateListener.update(STEP1 + (STEP2 / total * done)));
+            checkCancelled();
+        } catch (RuntimeException e) {
+            for (RepoUpdater repoUpdater : repoUpdaters) {
+                if (repoUpdater != null) repoUpdater.abort();
+            }
+            throw e;
         }
-        int updatedModules = 0;
+        int fetchIndex = 0;
         boolean allowLowQualityModules = MainApplication.isDisableLowQualityModuleFilter();
         for (int i = 0; i < repoUpdaters.length; i++) {
             List<RepoModule> repoModules = repoUpdaters[i].toUpdate();
             RepoData repoData = repoDatas[i];
             Log.d(TAG, "Registering " + repoData.name);
             for (RepoModule repoModule:repoModules) {
-                try {
-                    if (repoModule.propUrl != null &&
-                            !repoModule.propUrl.isEmpty()) {
-                        repoData.storeMetadata(repoModule,
-                                Http.doHttpGet(repoModule.propUrl, false));
-                        Files.write(new File(repoData.cacheRoot, repoModule.id + ".prop"),
-                                Http.doHttpGet(repoModule.propUrl, false));
+                if (repoModule.metadataPending) {
+                    // Placeholder, will be checked once metadata are loaded
+                    toLoadLater.add(repoModule);
+                    RepoModule registeredRepoModule = modules.get(repoModule.id);
+                    if (registeredRepoModule == null) {
+                        modules.put(repoModule.id, repoModule);
                     }
-                    if (repoData.tryLoadMetadata(repoModule) && (allowLowQualityModules ||
-                            !PropUtils.isLowQualityModule(repoModule.moduleInfo))) {
-                        // Note: registeredRepoModule may not be null if registered by multiple repos
-                        RepoModule registeredRepoModule = this.modules.get(repoModule.id);
-                        if (registeredRepoModule == null) {
-                            this.modules.put(repoModule.id, repoModule);
-                        } else if (repoModule.moduleInfo.versionCode >
-                                registeredRepoModule.moduleInfo.versionCode) {
-                            this.modules.put(repoModule.id, repoModule);
-                        }
+                } else if (loaded[fetchIndex++] && (allowLowQualityModules ||
+                        !PropUtils.isLowQualityModule(repoModule.moduleInfo))) {
+                    // Note: registeredRepoModule may not be null if registered by multiple repos
+                    RepoModule registeredRepoModule = modules.get(repoModule.id);
+                    if (registeredRepoModule == null) {
+                        modules.put(repoModule.id, repoModule);
+                    } else if (repoModule.moduleInfo.versionCode >
+                            registeredRepoModule.moduleInfo.versionCode) {
+                        modules.put(repoModule.id, repoModule);
                     }
-                } catch (Exception e) {
-                    Log.e(TAG, "Failed to get \"" + repoModule.id + "\" metadata", e);
                 }
-                updatedModules++;
-                updateListener.update(STEP1 + (STEP2 / moduleToUpdate * updatedModules));
             }
             for (RepoModule repoModule:repoUpdaters[i].toApply()) {
-                if ((repoModule.moduleInfo.flags & ModuleInfo.FLAG_METADATA_INVALID) == 0) {
-                    RepoModule registeredRepoModule = this.modules.get(repoModule.id);
+                if (repoModule.metadataPending && lazyMetadata) {
+                    toLoadLater.add(repoModule);
+                    if (!modules.containsKey(repoModule.id)) {
+                        modules.put(repoModule.id, repoModule);
+                    }
+                } else if ((repoModule.moduleInfo.flags & ModuleInfo.FLAG_METADATA_INVALID) == 0) {
+                    RepoModule registeredRepoModule = modules.get(repoModule.id);
                     if (registeredRepoModule == null) {
-                        this.modules.put(repoModule.id, repoModule);
+                        modules.put(repoModule.id, repoModule);
                     } else if (repoModule.moduleInfo.versionCode >
                             registeredRepoModule.moduleInfo.versionCode) {
-                        this.modules.put(repoModule.id, repoModule);
+                        modules.put(repoModule.id, repoModule);
                     }
                 }
             }
         }
         boolean hasInternet = false;
+        boolean checked = false;
         for (int i = 0; i < repoDatas.length; i++) {
-            hasInternet |= repoUpdaters[i].finish();
+            // Skipped repos are not a connectivity failure
+            boolean skipped = repoUpdaters[i].isSkipped();
+            boolean success = repoUpdaters[i].finish();
+            if (!skipped) {
+                checked = true;
+                hasInternet |= success;
+            }
             updateListener.update(STEP1 + STEP2 + (STEP3 / repoDatas.length * (i + 1)));
         }
-        Log.i(TAG, "Got " + this.modules.size() + " modules!");
+        Log.i(TAG, "Got " + modules.size() + " modules!");
+        for (RepoData repoData : repoDatas) {
+            repoData.publishModules();
+        }
+        synchronized (this.modulesLock) {
+            // Placeholders may have been loaded while the update was running
+            Iterator<Map.Entry<String, RepoModule>> iterator = modules.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, RepoModule> entry = iterator.next();
+                RepoModule repoModule = entry.getValue();
+                RepoModule published = repoModule.repoData.getModules().get(repoModule.id);
+                if (published == null || published == repoModule) continue;
+                if ((!published.metadataPending &&
+                        published.moduleInfo.hasFlag(ModuleInfo.FLAG_METADATA_INVALID)) ||
+                        (!allowLowQualityModules &&
+                                PropUtils.isLowQualityModule(published.moduleInfo))) {
+                    iterator.remove();
+                } else {
+                    entry.setValue(published);
+                }
+            }
+            this.modules = Collections.unmodifiableMap(modules);
+        }
+        for (RepoModule repoModule : toLoadLater) {
+            this.metadataLoader.request(repoModule, RepoMetadataLoader.PRIORITY_BACKGROUND);
+        }
         updateListener.update(1D);
-        return hasInternet;
+        return hasInternet || !checked;
+    }
+
+    public interface MetadataListener {
+        void onMetadataLoaded(RepoModule repoModule);
+    }
+
+    public static void setMetadataListener(MetadataListener metadataListener) {
+        RepoManager.metadataListener = metadataListener;
+    }
+
+    /**
+     * Remove the listener, only if it was not replaced by another one since.
+     */
+    public static void removeMetadataListener(MetadataListener metadataListener) {
+        if (RepoManager.metadataListener == metadataListener)
+            RepoManager.metadataListener = null;
+    }
+
+    /**
+     * Load metadata of a placeholder module, do nothing if metadata are already loaded.
+     * @param priority one of the {@code RepoMetadataLoader.PRIORITY_*} values
+     */
+    public void requestMetadata(RepoModule repoModule, int priority) {
+        this.metadataLoader.request(repoModule, priority);
+    }
+
+    private void onMetadataLoaded(RepoModule repoModule, RepoModule loaded,
+                                  boolean success, boolean idle) {
+        // Replace the placeholder unless a repo update already replaced it
+        if (repoModule.repoData.replaceModule(repoModule, loaded)) {
+            synchronized (this.modulesLock) {
+                Map<String, RepoModule> modules = this.modules;
+                if (modules.get(repoModule.id) == repoModule) {
+                    HashMap<String, RepoModule> newModules = new HashMap<>(modules);
+                    if (!success || (!MainApplication.isDisableLowQualityModuleFilter() &&
+                            PropUtils.isLowQualityModule(loaded.moduleInfo))) {
+                        newModules.remove(repoModule.id);
+                    } else {
+                        newModules.put(repoModule.id, loaded);
+                    }
+                    this.modules = Collections.unmodifiableMap(newModules);
+                }
+            }
+        }
+        if (idle) { // Save loaded metadata for next start
+            synchronized (this.repoScanLock) {
+                for (RepoData repoData : this.repoData.values()) {
+                    if (repoData.metaDataCache.exists())
+                        RepoSnapshot.write(repoData);
+                }
+            }
+        }
+        MetadataListener metadataListener = RepoManager.metadataListener;
+        if (metadataListener != null) {
+            metadataListener.onMetadataLoaded(loaded);
+        }
+    }
+
+    private static void checkCancelled() {
+        if (Thread.currentThread().isInterrupted())
+            throw new CancellationException("Repo update cancelled");
+    }
+
+    /**
+     * Fetch all repo indexes at the same time, so a slow repo doesn't delay the others.
+     * Results are stored in {@code repoUpdaters} in the same order as {@code repoDatas}.
+     */
+    private int fetchIndexes(RepoData[] repoDatas, RepoUpdater[] repoUpdaters,
+                             UpdateListener updateListener, boolean force) {
+        if (repoDatas.length == 0) return 0;
+        final AtomicInteger fetched = new AtomicInteger();
+        ExecutorService executorService = Executors.newFixedThreadPool(
+                Math.min(repoDatas.length, MAX_INDEX_FETCH_THREADS),
+                r -> new Thread(r, "Repo index fetch thread"));
+        @SuppressWarnings("unchecked")
+        Future<Integer>[] futures = new Future[repoDatas.length];
+        try {
+            for (int i = 0; i < repoDatas.length; i++) {
+                final RepoUpdater repoUpdater =
+                        repoUpdaters[i] = new RepoUpdater(repoDatas[i]);
+                futures[i] = executorService.submit(() -> {
+                    int toUpdate = repoUpdater.fetchIndex(force);
+                    updateListener.update(STEP1 / repoDatas.length * fetched.incrementAndGet());
+                    return toUpdate;
+                });
+            }
+            int moduleToUpdate = 0;
+            for (int i = 0; i < futures.length; i++) {
+                try {
+                    moduleToUpdate += futures[i].get();
+                } catch (ExecutionException e) {
+                    throw new RuntimeException("Failed to fetch index of " +
+                            repoDatas[i].id, e.getCause());
+                }
+            }
+            return moduleToUpdate;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while fetching repo indexes", e);
+        } finally {
+            executorService.shutdownNow();
+        }
     }
 
     public void updateEnabledStates() {
@@ -221,8 +459,11 @@ public final class RepoManager {
                 repoData.updateEnabledState();
     }
 
-    public HashMap<String, RepoModule> getModules() {
-        this.afterUpdate();
+    /**
+     * Get the latest complete module catalog, never block.
+     * Note: The returned map is immutable.
+     */
+    public Map<String, RepoModule> getModules() {
         return this.modules;
     }
 
@@ -243,11 +484,46 @@ public final class RepoManager {
         }
     }
 
+    /**
+     * @return mirrors of the repo index, or null if the repo doesn't have any
+     */
+    static String[] getMirrorsOf(String url) {
+        if (MAGISK_ALT_REPO.equals(url)) {
+            return new String[]{MAGISK_ALT_REPO, MAGISK_ALT_REPO_JSDELIVR};
+        }
+        return null;
+    }
+
+    /**
+     * All repos states are stored in a single preferences file, so
+     * startup only have to parse one file no matter the repo count.
+     */
+    private SharedPreferences getRepoPreferences(String id) {
+        if (this.repoStatePreferences == null) {
+            this.repoStatePreferences = this.mainApplication
+                    .getSharedPreferences("mmm_repos", Context.MODE_PRIVATE);
+        }
+        RepoPreferences repoPreferences =
+                new RepoPreferences(this.repoStatePreferences, id);
+        // Migrate per repo preferences file used by older versions
+        File oldFile = new File(this.mainApplication.getApplicationInfo().dataDir,
+                "shared_prefs/mmm_" + id + ".xml");
+        if (oldFile.exists()) {
+            SharedPreferences oldPreferences = this.mainApplication
+                    .getSharedPreferences("mmm_" + id, Context.MODE_PRIVATE);
+            repoPreferences.importFrom(oldPreferences);
+            oldPreferences.edit().clear().commit();
+            if (!oldFile.delete()) {
+                Log.w(TAG, "Failed to delete old preferences of " + id);
+            }
+        }
+        return repoPreferences;
+    }
+
     private RepoData addRepoData(String url) {
         String id = internalIdOfUrl(url);
         File cacheRoot = new File(this.mainApplication.getCacheDir(), id);
-        SharedPreferences sharedPreferences = this.mainApplication
-                .getSharedPreferences("mmm_" + id, Context.MODE_PRIVATE);
+        SharedPreferences sharedPreferences = this.getRepoPreferences(id);
         RepoData repoData = new RepoData(url, cacheRoot, sharedPreferences);
         this.repoData.put(url, repoData);
         return repoData;
@@ -255,8 +531,7 @@ public final class RepoManager {
 
     private AndroidacyRepoData addAndroidacyRepoData() {
         File cacheRoot = new File(this.mainApplication.getCacheDir(), "androidacy_repo");
-        SharedPreferences sharedPreferences = this.mainApplication
-                .getSharedPreferences("mmm_androidacy_repo", Context.MODE_PRIVATE);
+        SharedPreferences sharedPreferences = this.getRepoPreferences("androidacy_repo");
         AndroidacyRepoData repoData = new AndroidacyRepoData(
                 ANDROIDACY_MAGISK_REPO_ENDPOINT, cacheRoot, sharedPreferences);
         this.repoData.put(ANDROIDACY_MAGISK_REPO_ENDPOINT, repoData);
@@ -0,0 +1,212 @@
+package com.fox2code.mmm.repo;
+
+import android.util.Log;
+
+import com.fox2code.mmm.utils.Http;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Unpack module.prop files of a repo from a single zip or tar.gz archive.
+ * Accepted entry names are "{@code <id>.prop}" and "{@code <id>/module.prop}",
+ * directories before that are ignored.
+ */
+final class RepoMetadataArchive {
+    private static final String TAG = "RepoMetadataArchive";
+    // module.prop files are small, anything bigger is not a module.prop
+    private static final int MAX_PROP_SIZE = 256 * 1024;
+    private static final int TAR_BLOCK = 512;
+
+    private RepoMetadataArchive() {}
+
+    interface EntryHandler {
+        void onEntry(String id, byte[] data) throws IOException;
+    }
+
+    /**
+     * Download and unpack the archive, only modules in {@code modules}
+     * are stored, return the ids of stored modules.
+     */
+    static Set<String> fetch(String url, RepoData repoData,
+                             Map<String, RepoModule> modules) throws IOException {
+        InputStream inputStream = Http.doHttpGetStream(url, new Http.Validators());
+        if (inputStream == null) throw new IOException("No content");
+        EntryHandler entryHandler = (id, data) -> repoData.storeMetadata(modules.get(id), data);
+        try (InputStream in = new BufferedInputStream(inputStream)) {
+            in.mark(2);
+            int b1 = in.read(), b2 = in.read();
+            in.reset();
+            if (b1 == 'P' && b2 == 'K') {
+                return unpackZip(in, modules.keySet(), entryHandler);
+            } else if (b1 == 0x1F && b2 == 0x8B) {
+                return unpackTar(new GZIPInputStream(in), modules.keySet(), entryHandler);
+            }
+            throw new IOException("Unknown archive format");
+        }
+    }
+
+    static Set<String> unpackZip(InputStream inputStream, Set<String> ids,
+                                 EntryHandler entryHandler) throws IOException {
+        HashSet<String> stored = new HashSet<>();
+        ZipInputStream zipInputStream = new ZipInputStream(inputStream);
+        ZipEntry zipEntry;
+        while ((zipEntry = zipInputStream.getNextEntry()) != null) {
+            if (zipEntry.isDirectory()) continue;
+            String id = getModuleId(zipEntry.getName());
+            if (id == null || !ids.contains(id)) continue;
+            byte[] data = readEntry(zipInputStream, MAX_PROP_SIZE);
+            if (data == null) continue;
+            entryHandler.onEntry(id, data);
+            stored.add(id);
+        }
+        return stored;
+    }
+
+    static Set<String> unpackTar(InputStream inputStream, Set<String> ids,
+                                 EntryHandler entryHandler) throws IOException {
+        HashSet<String> stored = new HashSet<>();
+        byte[] header = new byte[TAR_BLOCK];
+        String longName = null;
+        while (true) {
+            readFully(inputStream, header, TAR_BLOCK);
+            if (header[0] == 0) break; // End of archive
+            long size = readTarSize(header);
+            long padded = (size + TAR_BLOCK - 1) / TAR_BLOCK * TAR_BLOCK;
+            char type = (char) header[156];
+            if (type == 'L' || type == 'x' || type == 'g') {
+                // GNU long name or pax headers, they apply to the next entry
+                if (size > MAX_PROP_SIZE) throw new IOException("Oversized tar extended header");
+                byte[] data = new byte[(int) size];
+                readFully(inputStream, data, data.length);
+                skipFully(inputStream, padded - size);
+                if (type == 'L') {
+                    longName = readTarString(data, 0, data.length);
+                } else if (type == 'x') {
+                    String path = readPaxPath(data);
+                    if (path != null) longName = path;
+                } // Global pax headers don't name entries
+                continue;
+            }
+            String name = readTarString(header, 0, 100);
+            String prefix = readTarString(header, 345, 155); // ustar prefix
+            if (!prefix.isEmpty()) name = prefix + "/" + name;
+            if (longName != null) {
+                name = longName;
+                longName = null;
+            }
+            String id = (type == '0' || type == 0) && size <= MAX_PROP_SIZE ?
+                    getModuleId(name) : null;
+            if (id != null && ids.contains(id)) {
+                byte[] data = new byte[(int) size];
+                readFully(inputStream, data, data.length);
+                skipFully(inputStream, padded - size);
+                entryHandler.onEntry(id, data);
+                stored.add(id);
+            } else {
+                skipFully(inputStream, padded);
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * @return the module id of an archive entry, or null if it's not
+     * a module.prop or if its path try to get out of the archive
+     */
+    static String getModuleId(String name) {
+        if (name.startsWith("/") || name.indexOf('\\') != -1 ||
+                name.equals("..") || name.startsWith("../") ||
+                name.contains("/../") || name.endsWith("/..")) return null;
+        if (name.startsWith("./")) name = name.substring(2);
+        if (name.endsWith("/module.prop")) {
+            name = name.substring(0, name.length() - 12);
+        } else if (name.endsWith(".prop")) {
+            name = name.substring(0, name.length() - 5);
+        } else return null;
+        int i = name.lastIndexOf('/');
+        if (i != -1) name = name.substring(i + 1);
+        return name.isEmpty() || name.equals(".") ? null : name;
+    }
+
+    private static byte[] readEntry(InputStream inputStream, int max) throws IOException {
+        byte[] buff = new byte[8192];
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        int read;
+        while ((read = inputStream.read(buff)) != -1) {
+            outputStream.write(buff, 0, read);
+            if (outputStream.size() > max) {
+                Log.w(TAG, "Skipping oversized archive entry");
+                return null;
+            }
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static long readTarSize(byte[] header) throws IOException {
+        String sizeText = readTarString(header, 124, 12).trim();
+        try {
+            long size = sizeText.isEmpty() ? 0 : Long.parseLong(sizeText, 8);
+            if (size >= 0) return size;
+        } catch (NumberFormatException ignored) {}
+        throw new IOException("Invalid tar entry size");
+    }
+
+    // Records are "<length> <key>=<value>\n", length including itself
+    private static String readPaxPath(byte[] data) throws IOException {
+        String path = null;
+        int offset = 0;
+        while (offset < data.length) {
+            int space = offset;
+            while (space < data.length && data[space] != ' ') space++;
+            int length;
+            try {
+                length = Integer.parseInt(new String(data, offset,
+                        space - offset, StandardCharsets.UTF_8));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid pax header");
+            }
+            if (length < space - offset + 2 || length > data.length - offset)
+                throw new IOException("Invalid pax header");
+            String record = new String(data, space + 1,
+                    offset + length - space - 2, StandardCharsets.UTF_8);
+            if (record.startsWith("path=")) path = record.substring(5);
+            offset += length;
+        }
+        return path;
+    }
+
+    private static String readTarString(byte[] header, int offset, int len) {
+        int end = offset;
+        while (end < offset + len && header[end] != 0) end++;
+        return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static void readFully(InputStream inputStream, byte[] buff, int len) throws IOException {
+        int off = 0;
+        while (off < len) {
+            int read = inputStream.read(buff, off, len - off);
+            if (read == -1) throw new EOFException("Truncated archive");
+            off += read;
+        }
+    }
+
+    private static void skipFully(InputStream inputStream, long len) throws IOException {
+        byte[] buff = new byte[TAR_BLOCK];
+        while (len > 0) {
+            int read = inputStream.read(buff, 0, (int) Math.min(buff.length, len));
+            if (read == -1) throw new EOFException("Truncated archive");
+            len -= read;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.fox2code.mmm.repo;
+
+import android.net.Uri;
+import android.util.Log;
+
+import com.fox2code.mmm.utils.Http;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Download, store and parse module.prop files of repo modules concurrently.
+ * Each prop file is downloaded exactly once, then parsed on the worker thread.
+ */
+final class RepoMetadataFetcher {
+    private static final String TAG = "RepoMetadataFetcher";
+    private static final int MAX_THREADS = 8;
+    private static final int MAX_THREADS_PER_HOST = 4;
+
+    interface ProgressListener {
+        void onProgress(int done, int total);
+    }
+
+    private RepoMetadataFetcher() {}
+
+    /**
+     * Fetch metadata of all modules, return for each module
+     * if it's metadata was successfully loaded or not.
+     */
+    static boolean[] fetchAll(List<RepoModule> repoModules,
+                              ProgressListener progressListener) {
+        final int total = repoModules.size();
+        final boolean[] loaded = new boolean[total];
+        if (total == 0) return loaded;
+        // Group by host to not open too many connections to the same server
+        LinkedHashMap<String, ConcurrentLinkedQueue<Integer>> hostQueues = new LinkedHashMap<>();
+        for (int i = 0; i < total; i++) {
+            String propUrl = repoModules.get(i).propUrl;
+            String host = propUrl == null || propUrl.isEmpty() ?
+                    "" : String.valueOf(Uri.parse(propUrl).getHost());
+            ConcurrentLinkedQueue<Integer> queue = hostQueues.get(host);
+            if (queue == null) {
+                hostQueues.put(host, queue = new ConcurrentLinkedQueue<>());
+            }
+            queue.add(i);
+        }
+        final AtomicInteger done = new AtomicInteger();
+        ExecutorService executorService = Executors.newFixedThreadPool(
+                Math.min(total, MAX_THREADS), r -> new Thread(r, "Repo metadata fetch thread"));
+        ArrayList<Future<?>> futures = new ArrayList<>();
+        try {
+            for (final ConcurrentLinkedQueue<Integer> queue : hostQueues.values()) {
+                int workers = Math.min(queue.size(), MAX_THREADS_PER_HOST);
+                for (int i = 0; i < workers; i++) {
+                    futures.add(executorService.submit(() -> {
+                        Integer index;
+                        while ((index = queue.poll()) != null) {
+                            loaded[index] = fetch(repoModules.get(index));
+                            progressListener.onProgress(done.incrementAndGet(), total);
+                        }
+                    }));
+                }
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw new RuntimeException("Failed to fetch repo metadata", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while fetching repo metadata", e);
+        } finally {
+            executorService.shutdownNow();
+        }
+        return loaded;
+    }
+
+    static boolean fetch(RepoModule repoModule) {
+        RepoData repoData = repoModule.repoData;
+        int generation;
+        synchronized (repoModule) {
+            generation = repoModule.metadataGeneration;
+        }
+        try {
+            if (repoModule.propUrl != null &&
+                    !repoModule.propUrl.isEmpty()) {
+                repoData.storeMetadata(repoModule,
+                        Http.doHttpGet(repoModule.propUrl, false));
+            }
+            return repoData.tryLoadMetadata(repoModule);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to get \"" + repoModule.id + "\" metadata", e);
+            return false;
+        } finally {
+            synchronized (repoModule) {
+                // Metadata may have been invalidated by a repo update meanwhile
+                if (repoModule.metadataGeneration == generation)
+                    repoModule.metadataPending = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.fox2code.mmm.repo;
+
+import java.util.HashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load metadata of repo modules on demand, used when lazy metadata is enabled.
+ * Requests with the lowest priority value are loaded first.
+ */
+public final class RepoMetadataLoader {
+    public static final int PRIORITY_OPENED = 0;
+    public static final int PRIORITY_VISIBLE = 1;
+    public static final int PRIORITY_SEARCHED = 2;
+    public static final int PRIORITY_BACKGROUND = 3;
+    private static final int MAX_THREADS = 4;
+    // Best priority of the queued request of each module
+    private final HashMap<RepoModule, Integer> queued = new HashMap<>();
+    private final ThreadPoolExecutor executor;
+    private final Listener listener;
+    private long sequence;
+
+    interface Listener {
+        /**
+         * @param loaded copy of {@code repoModule} with loaded metadata
+         */
+        void onMetadataLoaded(RepoModule repoModule, RepoModule loaded,
+                              boolean success, boolean idle);
+    }
+
+    RepoMetadataLoader(Listener listener) {
+        this.listener = listener;
+        this.executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS,
+                30, TimeUnit.SECONDS, new PriorityBlockingQueue<>(),
+                r -> new Thread(r, "Repo metadata loader thread"));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queue the module metadata to be loaded, does nothing if
+     * the module is already queued with the same or a better priority
+     */
+    public void request(RepoModule repoModule, int priority) {
+        if (!repoModule.metadataPending || !repoModule.repoData.isPublished(repoModule)) return;
+        synchronized (this.queued) {
+            Integer current = this.queued.get(repoModule);
+            if (current != null && current <= priority) return;
+            this.queued.put(repoModule, priority);
+            // Old request if any will be skipped when it's his turn
+            this.executor.execute(new Request(repoModule, priority, this.sequence++));
+        }
+    }
+
+    private final class Request implements Runnable, Comparable<Request> {
+        private final RepoModule repoModule;
+        private final int priority;
+        private final long sequence;
+
+        private Request(RepoModule repoModule, int priority, long sequence) {
+            this.repoModule = repoModule;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            boolean idle;
+            synchronized (queued) {
+                Integer current = queued.get(this.repoModule);
+                if (current == null || current != this.priority) return;
+                queued.remove(this.repoModule);
+            }
+            // Skip modules already loaded or replaced by a repo update
+            if (!this.repoModule.metadataPending ||
+                    !this.repoModule.repoData.isPublished(this.repoModule)) return;
+            // Published modules are never modified, metadata are loaded in a copy
+            RepoModule loaded = new RepoModule(this.repoModule);
+            boolean success = RepoMetadataFetcher.fetch(loaded);
+            synchronized (queued) {
+                idle = queued.isEmpty();
+            }
+            listener.onMetadataLoaded(this.repoModule, loaded, success, idle);
+        }
+
+        @Override
+        public int compareTo(Request o) {
+            return this.priority != o.priority ?
+                    Integer.compare(this.priority, o.priority) :
+                    Long.compare(this.sequence, o.sequence);
+        }
+    }
+}
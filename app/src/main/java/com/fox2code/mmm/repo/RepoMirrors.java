@@ -0,0 +1,105 @@
+package com.fox2code.mmm.repo;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+import com.fox2code.mmm.MainApplication;
+import com.fox2code.mmm.utils.Http;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Pick the fastest mirror of a repo index, latency scores are
+ * persisted per network as the best mirror depend on the carrier.
+ */
+final class RepoMirrors {
+    private static final String TAG = "RepoMirrors";
+    private static final String JSDELIVR_PREFIX = "https://cdn.jsdelivr.net/";
+    // Chance to try another mirror first, so scores of other mirrors stay fresh
+    private static final double EXPLORE_CHANCE = 0.1D;
+    private static final long FAILURE_PENALTY = 10_000L;
+    // Failing mirrors can't get worse than this, so scores never overflow
+    private static final long MAX_SCORE = 600_000L;
+    private static final Random random = new Random();
+    private final String[] urls;
+    private final SharedPreferences cachedPreferences;
+    private volatile String selected;
+
+    RepoMirrors(SharedPreferences cachedPreferences, String... urls) {
+        this.urls = urls;
+        this.cachedPreferences = cachedPreferences;
+    }
+
+    /**
+     * @return mirrors urls, the one that should be tried first is first.
+     */
+    String[] getIndexUrls() {
+        final String networkKey = getNetworkKey();
+        final long[] scores = new long[this.urls.length];
+        Integer[] order = new Integer[this.urls.length];
+        for (int i = 0; i < this.urls.length; i++) {
+            // Unknown mirrors have a score of 0 so they get tried first
+            scores[i] = Math.max(this.cachedPreferences.getLong(
+                    getKey(networkKey, this.urls[i]), 0), 0);
+            order[i] = i;
+        }
+        Arrays.sort(order, (o1, o2) -> Long.compare(scores[o1], scores[o2]));
+        if (order.length > 1 && random.nextDouble() < EXPLORE_CHANCE) {
+            Integer first = order[0];
+            order[0] = order[1];
+            order[1] = first;
+        }
+        String[] indexUrls = new String[order.length];
+        for (int i = 0; i < order.length; i++) {
+            indexUrls[i] = this.urls[order[i]];
+        }
+        return indexUrls;
+    }
+
+    void report(String url, long latency, boolean success) {
+        String key = getKey(getNetworkKey(), url);
+        long score = Math.min(this.cachedPreferences.getLong(key, 0), MAX_SCORE);
+        if (success) {
+            score = score <= 0 ? latency : (score * 3 + latency) / 4;
+            this.selected = url;
+        } else {
+            score = Math.min(Math.max(score * 2, FAILURE_PENALTY), MAX_SCORE);
+        }
+        Log.d(TAG, "Mirror " + url + " score is now " + score);
+        this.cachedPreferences.edit().putLong(key, score).apply();
+    }
+
+    /**
+     * Rewrite a link to use the same mirror as the index.
+     */
+    String rewrite(String url) {
+        String selected = this.selected;
+        if (url == null || selected == null) return url;
+        if (selected.startsWith(JSDELIVR_PREFIX)) {
+            return Http.cdnIfyLink(url);
+        }
+        return url;
+    }
+
+    private static String getKey(String networkKey, String url) {
+        return "mirror_" + networkKey + "_" + Integer.toHexString(url.hashCode());
+    }
+
+    private static String getNetworkKey() {
+        MainApplication mainApplication = MainApplication.getINSTANCE();
+        ConnectivityManager connectivityManager = mainApplication == null ? null :
+                (ConnectivityManager) mainApplication
+                        .getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager == null) return "unknown";
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        if (networkInfo == null) return "none";
+        // Extra info is the APN name on mobile networks
+        String extraInfo = networkInfo.getExtraInfo();
+        return networkInfo.getType() + (extraInfo == null ? "" :
+                "_" + Integer.toHexString(extraInfo.hashCode()));
+    }
+}
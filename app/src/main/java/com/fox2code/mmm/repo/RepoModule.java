@@ -14,7 +14,10 @@ public class RepoModule {
     public String zipUrl;
     public String notesUrl;
     public String checksum;
-    public boolean processed;
+    // Metadata will be loaded on demand, see RepoMetadataLoader
+    public volatile boolean metadataPending;
+    // Incremented when metadata are invalidated, guarded by the module lock
+    int metadataGeneration;
     @StringRes
     public int qualityText;
     public int qualityValue;
@@ -26,4 +29,23 @@ public class RepoModule {
         this.moduleInfo.flags |=
                 ModuleInfo.FLAG_METADATA_INVALID;
     }
+
+    /**
+     * Copy a module, published modules are never modified, changes
+     * are made to a copy that replace the module once done.
+     */
+    public RepoModule(RepoModule repoModule) {
+        this.repoData = repoModule.repoData;
+        this.moduleInfo = new ModuleInfo(repoModule.moduleInfo);
+        this.id = repoModule.id;
+        this.repoName = repoModule.repoName;
+        this.lastUpdated = repoModule.lastUpdated;
+        this.propUrl = repoModule.propUrl;
+        this.zipUrl = repoModule.zipUrl;
+        this.notesUrl = repoModule.notesUrl;
+        this.checksum = repoModule.checksum;
+        this.metadataPending = repoModule.metadataPending;
+        this.qualityText = repoModule.qualityText;
+        this.qualityValue = repoModule.qualityValue;
+    }
 }
@@ -0,0 +1,225 @@
+package com.fox2code.mmm.repo;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.Nullable;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * View of the shared repo state store for a single repo, all repos share
+ * the same preferences file and keys are prefixed by the repo id.
+ */
+final class RepoPreferences implements SharedPreferences {
+    private final SharedPreferences sharedPreferences;
+    private final String prefix;
+    private final WeakHashMap<OnSharedPreferenceChangeListener, PrefixedListener> listeners =
+            new WeakHashMap<>();
+
+    RepoPreferences(SharedPreferences sharedPreferences, String id) {
+        this.sharedPreferences = sharedPreferences;
+        this.prefix = id + "/";
+    }
+
+    /**
+     * Copy all values of an old per repo preferences file into this view.
+     */
+    void importFrom(SharedPreferences oldPreferences) {
+        Editor editor = this.edit();
+        for (Map.Entry<String, ?> entry : oldPreferences.getAll().entrySet()) {
+            Object value = entry.getValue();
+            String key = entry.getKey();
+            if (value instanceof String) {
+                editor.putString(key, (String) value);
+            } else if (value instanceof Integer) {
+                editor.putInt(key, (Integer) value);
+            } else if (value instanceof Long) {
+                editor.putLong(key, (Long) value);
+            } else if (value instanceof Float) {
+                editor.putFloat(key, (Float) value);
+            } else if (value instanceof Boolean) {
+                editor.putBoolean(key, (Boolean) value);
+            } else if (value instanceof Set) {
+                //noinspection unchecked
+                editor.putStringSet(key, (Set<String>) value);
+            }
+        }
+        editor.apply();
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        HashMap<String, Object> values = new HashMap<>();
+        for (Map.Entry<String, ?> entry : this.sharedPreferences.getAll().entrySet()) {
+            if (entry.getKey().startsWith(this.prefix)) {
+                values.put(entry.getKey().substring(this.prefix.length()), entry.getValue());
+            }
+        }
+        return values;
+    }
+
+    @Nullable
+    @Override
+    public String getString(String key, @Nullable String defValue) {
+        return this.sharedPreferences.getString(this.prefix + key, defValue);
+    }
+
+    @Nullable
+    @Override
+    public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
+        return this.sharedPreferences.getStringSet(this.prefix + key, defValues);
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        return this.sharedPreferences.getInt(this.prefix + key, defValue);
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        return this.sharedPreferences.getLong(this.prefix + key, defValue);
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        return this.sharedPreferences.getFloat(this.prefix + key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        return this.sharedPreferences.getBoolean(this.prefix + key, defValue);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return this.sharedPreferences.contains(this.prefix + key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new RepoEditor(this.sharedPreferences.edit());
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(
+            OnSharedPreferenceChangeListener listener) {
+        synchronized (this.listeners) {
+            if (this.listeners.containsKey(listener)) return;
+            PrefixedListener prefixedListener = new PrefixedListener(listener);
+            this.listeners.put(listener, prefixedListener);
+            this.sharedPreferences.registerOnSharedPreferenceChangeListener(prefixedListener);
+        }
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(
+            OnSharedPreferenceChangeListener listener) {
+        synchronized (this.listeners) {
+            PrefixedListener prefixedListener = this.listeners.remove(listener);
+            if (prefixedListener != null) {
+                this.sharedPreferences
+                        .unregisterOnSharedPreferenceChangeListener(prefixedListener);
+            }
+        }
+    }
+
+    /**
+     * Only forward changes of this repo, like SharedPreferences the
+     * listener is only weakly referenced.
+     */
+    private final class PrefixedListener implements OnSharedPreferenceChangeListener {
+        private final WeakReference<OnSharedPreferenceChangeListener> listener;
+
+        private PrefixedListener(OnSharedPreferenceChangeListener listener) {
+            this.listener = new WeakReference<>(listener);
+        }
+
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+            OnSharedPreferenceChangeListener listener = this.listener.get();
+            if (listener == null) {
+                sharedPreferences.unregisterOnSharedPreferenceChangeListener(this);
+                return;
+            }
+            if (key == null) { // Preferences were cleared
+                listener.onSharedPreferenceChanged(RepoPreferences.this, null);
+            } else if (key.startsWith(prefix)) {
+                listener.onSharedPreferenceChanged(RepoPreferences.this,
+                        key.substring(prefix.length()));
+            }
+        }
+    }
+
+    private final class RepoEditor implements Editor {
+        private final Editor editor;
+
+        private RepoEditor(Editor editor) {
+            this.editor = editor;
+        }
+
+        @Override
+        public Editor putString(String key, @Nullable String value) {
+            this.editor.putString(prefix + key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putStringSet(String key, @Nullable Set<String> values) {
+            this.editor.putStringSet(prefix + key, values);
+            return this;
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            this.editor.putInt(prefix + key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            this.editor.putLong(prefix + key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            this.editor.putFloat(prefix + key, value);
+            return this;
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            this.editor.putBoolean(prefix + key, value);
+            return this;
+        }
+
+        @Override
+        public Editor remove(String key) {
+            this.editor.remove(prefix + key);
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            // Only clear values of this repo
+            for (String key : sharedPreferences.getAll().keySet()) {
+                if (key.startsWith(prefix)) this.editor.remove(key);
+            }
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            return this.editor.commit();
+        }
+
+        @Override
+        public void apply() {
+            this.editor.apply();
+        }
+    }
+}
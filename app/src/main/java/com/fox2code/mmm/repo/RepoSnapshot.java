@@ -0,0 +1,182 @@
+package com.fox2code.mmm.repo;
+
+import android.util.Log;
+
+import com.fox2code.mmm.BuildConfig;
+import com.fox2code.mmm.manager.ModuleInfo;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Binary snapshot of a repo module table, allow to show the
+ * catalog on cold start without parsing the index and prop files.
+ *
+ * The snapshot is only valid for the exact modules.json it was made
+ * with, and for the app version that wrote it (Resource ids can change).
+ */
+final class RepoSnapshot {
+    private static final String TAG = "RepoSnapshot";
+    private static final int MAGIC = 0x4D4D4D53; // "MMMS"
+    private static final int FORMAT_VERSION = 3;
+
+    private RepoSnapshot() {}
+
+    static File getFile(RepoData repoData) {
+        return new File(repoData.cacheRoot, "modules.snapshot");
+    }
+
+    /**
+     * Load the snapshot into the repo data, return false if
+     * the snapshot is missing, outdated or corrupted.
+     */
+    static boolean read(RepoData repoData) {
+        File file = getFile(repoData);
+        if (!file.exists()) return false;
+        ArrayList<RepoModule> repoModules = new ArrayList<>();
+        String name;
+        String metadataArchiveUrl;
+        long lastUpdate;
+        try (FileInputStream fileInputStream = new FileInputStream(file)) {
+            FileChannel fileChannel = fileInputStream.getChannel();
+            ByteBuffer buffer = fileChannel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION ||
+                    buffer.getInt() != BuildConfig.VERSION_CODE ||
+                    buffer.getLong() != repoData.metaDataCache.lastModified() ||
+                    buffer.getLong() != repoData.metaDataCache.length()) {
+                Log.d(TAG, "Snapshot of " + repoData.id + " is outdated");
+                file.delete();
+                return false;
+            }
+            lastUpdate = buffer.getLong();
+            name = readString(buffer);
+            metadataArchiveUrl = readString(buffer);
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                RepoModule repoModule = new RepoModule(repoData, readString(buffer));
+                repoModule.repoName = readString(buffer);
+                repoModule.lastUpdated = buffer.getLong();
+                repoModule.propUrl = readString(buffer);
+                repoModule.zipUrl = readString(buffer);
+                repoModule.notesUrl = readString(buffer);
+                repoModule.checksum = readString(buffer);
+                repoModule.qualityText = buffer.getInt();
+                repoModule.qualityValue = buffer.getInt();
+                ModuleInfo moduleInfo = repoModule.moduleInfo;
+                moduleInfo.name = readString(buffer);
+                moduleInfo.version = readString(buffer);
+                moduleInfo.versionCode = buffer.getLong();
+                moduleInfo.author = readString(buffer);
+                moduleInfo.description = readString(buffer);
+                moduleInfo.updateJson = readString(buffer);
+                moduleInfo.support = readString(buffer);
+                moduleInfo.donate = readString(buffer);
+                moduleInfo.config = readString(buffer);
+                moduleInfo.minMagisk = buffer.getInt();
+                moduleInfo.minApi = buffer.getInt();
+                moduleInfo.maxApi = buffer.getInt();
+                moduleInfo.flags = buffer.getInt();
+                repoModule.metadataPending = buffer.get() != 0;
+                repoModules.add(repoModule);
+            }
+            if (buffer.hasRemaining())
+                throw new IOException("Trailing data in snapshot");
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Failed to read snapshot of " + repoData.id, e);
+            file.delete();
+            return false;
+        }
+        for (RepoModule repoModule : repoModules) {
+            repoData.moduleHashMap.put(repoModule.id, repoModule);
+        }
+        repoData.name = name;
+        repoData.metadataArchiveUrl = metadataArchiveUrl;
+        repoData.lastUpdate = lastUpdate;
+        return true;
+    }
+
+    /**
+     * Write a snapshot of the repo data, must be called after modules.json is written
+     */
+    static void write(RepoData repoData) {
+        File file = getFile(repoData);
+        File tmp = new File(repoData.cacheRoot, "modules.snapshot.tmp");
+        try (DataOutputStream outputStream = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            outputStream.writeInt(MAGIC);
+            outputStream.writeInt(FORMAT_VERSION);
+            outputStream.writeInt(BuildConfig.VERSION_CODE);
+            outputStream.writeLong(repoData.metaDataCache.lastModified());
+            outputStream.writeLong(repoData.metaDataCache.length());
+            outputStream.writeLong(repoData.lastUpdate);
+            writeString(outputStream, repoData.name);
+            writeString(outputStream, repoData.metadataArchiveUrl);
+            outputStream.writeInt(repoData.moduleHashMap.size());
+            for (RepoModule repoModule : repoData.moduleHashMap.values()) {
+                writeString(outputStream, repoModule.id);
+                writeString(outputStream, repoModule.repoName);
+                outputStream.writeLong(repoModule.lastUpdated);
+                writeString(outputStream, repoModule.propUrl);
+                writeString(outputStream, repoModule.zipUrl);
+                writeString(outputStream, repoModule.notesUrl);
+                writeString(outputStream, repoModule.checksum);
+                outputStream.writeInt(repoModule.qualityText);
+                outputStream.writeInt(repoModule.qualityValue);
+                ModuleInfo moduleInfo = repoModule.moduleInfo;
+                writeString(outputStream, moduleInfo.name);
+                writeString(outputStream, moduleInfo.version);
+                outputStream.writeLong(moduleInfo.versionCode);
+                writeString(outputStream, moduleInfo.author);
+                writeString(outputStream, moduleInfo.description);
+                writeString(outputStream, moduleInfo.updateJson);
+                writeString(outputStream, moduleInfo.support);
+                writeString(outputStream, moduleInfo.donate);
+                writeString(outputStream, moduleInfo.config);
+                outputStream.writeInt(moduleInfo.minMagisk);
+                outputStream.writeInt(moduleInfo.minApi);
+                outputStream.writeInt(moduleInfo.maxApi);
+                outputStream.writeInt(moduleInfo.flags);
+                outputStream.writeBoolean(repoModule.metadataPending);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write snapshot of " + repoData.id, e);
+            tmp.delete();
+            file.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            file.delete();
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int len = buffer.getInt();
+        if (len == -1) return null;
+        if (len < 0 || len > buffer.remaining())
+            throw new IllegalStateException("Invalid string length: " + len);
+        byte[] bytes = new byte[len];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream outputStream,
+                                    String string) throws IOException {
+        if (string == null) {
+            outputStream.writeInt(-1);
+            return;
+        }
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        outputStream.writeInt(bytes.length);
+        outputStream.write(bytes);
+    }
+}
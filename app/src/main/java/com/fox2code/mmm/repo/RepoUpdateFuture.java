@@ -0,0 +1,91 @@
+package com.fox2code.mmm.repo;
+
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Handle of a repo update, shared by everyone that requested
+ * an update while it was running. The result is true if we
+ * could reach at least one repo.
+ */
+public final class RepoUpdateFuture extends FutureTask<Boolean>
+        implements RepoManager.UpdateListener {
+    private static final String TAG = "RepoUpdateFuture";
+    private final CopyOnWriteArrayList<RepoManager.UpdateListener> updateListeners =
+            new CopyOnWriteArrayList<>();
+    private volatile double progress;
+
+    interface UpdateTask {
+        boolean run(RepoManager.UpdateListener updateListener) throws Exception;
+    }
+
+    private RepoUpdateFuture(Callable<Boolean> callable) {
+        super(callable);
+    }
+
+    static RepoUpdateFuture create(UpdateTask updateTask) {
+        final RepoUpdateFuture[] self = new RepoUpdateFuture[1];
+        return self[0] = new RepoUpdateFuture(() -> updateTask.run(self[0]));
+    }
+
+    @Override
+    public void update(double value) {
+        this.progress = value;
+        for (RepoManager.UpdateListener updateListener : this.updateListeners) {
+            updateListener.update(value);
+        }
+    }
+
+    public double getProgress() {
+        return this.progress;
+    }
+
+    public void addUpdateListener(RepoManager.UpdateListener updateListener) {
+        if (updateListener == null) return;
+        this.updateListeners.add(updateListener);
+        // Catch up with the current progress
+        updateListener.update(this.progress);
+    }
+
+    public void removeUpdateListener(RepoManager.UpdateListener updateListener) {
+        this.updateListeners.remove(updateListener);
+    }
+
+    /**
+     * Stop observing the update, and cancel it if nobody else observe it.
+     * Should be called when the component that requested the update go away.
+     */
+    public void detach(RepoManager.UpdateListener updateListener) {
+        this.updateListeners.remove(updateListener);
+        if (this.updateListeners.isEmpty() && !this.isDone()) {
+            Log.i(TAG, "No more observers, cancelling repo update");
+            this.cancel(true);
+        }
+    }
+
+    /**
+     * Wait for the update to finish, return false on
+     * failure, timeout, cancellation or interruption.
+     */
+    public boolean await(long timeout, TimeUnit unit) {
+        try {
+            return this.get(timeout, unit);
+        } catch (TimeoutException e) {
+            Log.w(TAG, "Repo update is taking too long, not waiting for it");
+        } catch (CancellationException e) {
+            Log.w(TAG, "Repo update got cancelled");
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Repo update failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+}
@@ -1,61 +1,312 @@
 package com.fox2code.mmm.repo;
 
+import android.util.JsonReader;
 import android.util.Log;
 
-import com.fox2code.mmm.utils.Files;
+import com.fox2code.mmm.MainApplication;
 import com.fox2code.mmm.utils.Http;
+import com.fox2code.mmm.utils.PropUtils;
 
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Set;
 
 public class RepoUpdater {
     private static final String TAG = "RepoUpdater";
     public final RepoData repoData;
-    public byte[] indexRaw;
+    private final File indexTemp;
+    private boolean indexFetched;
+    private Http.Validators validators;
+    // Mirror the fetched index came from
+    private String validatorsUrl;
+    private boolean notModified;
+    private boolean fresh;
+    // No request was made, so the result says nothing about connectivity
+    private boolean skipped;
     private List<RepoModule> toUpdate;
     private Set<RepoModule> toApply;
 
     public RepoUpdater(RepoData repoData) {
         this.repoData = repoData;
+        this.indexTemp = new File(repoData.cacheRoot, "modules.json.tmp");
     }
 
-    public int fetchIndex() {
+    /**
+     * @param force ignore the freshness policy of the repo
+     */
+    public int fetchIndex(boolean force) {
         if (!this.repoData.isEnabled()) {
-            this.indexRaw = null;
+            this.skipped = true;
+            this.indexFetched = false;
             this.toUpdate = Collections.emptyList();
             this.toApply = Collections.emptySet();
             return 0;
         }
+        if (!force && this.repoData.isFresh()) {
+            Log.d(TAG, "Repo " + this.repoData.id + " is still fresh, using cached catalog");
+            this.fresh = true;
+            // Modules which metadata failed to load are still retried
+            this.toUpdate = this.repoData.copyInvalidModules();
+            this.toApply = new HashSet<>(this.repoData.moduleHashMap.values());
+            this.toApply.removeAll(this.toUpdate);
+            return this.toUpdate.size();
+        }
+        if (!this.repoData.health.allowRequest()) {
+            Log.d(TAG, "Repo " + this.repoData.id + " is unhealthy, using cached catalog");
+            this.skipped = true;
+            this.toUpdate = Collections.emptyList();
+            this.toApply = new HashSet<>(this.repoData.moduleHashMap.values());
+            return 0;
+        }
+        final long start = System.currentTimeMillis();
         try {
             if (!this.repoData.prepare()) {
-                this.indexRaw = null;
+                this.indexFetched = false;
                 this.toUpdate = Collections.emptyList();
-                this.toApply = Collections.emptySet();
+                this.toApply = new HashSet<>(this.repoData.moduleHashMap.values());
                 return 0;
             }
-            this.indexRaw = Http.doHttpGet(this.repoData.url, false);
-            this.toUpdate = this.repoData.populate(new JSONObject(
-                    new String(this.indexRaw, StandardCharsets.UTF_8)));
+            String deltaUrl = this.repoData.getDeltaUrl();
+            if (deltaUrl == null || !this.fetchDelta(deltaUrl)) {
+                Http.Validators validators = null;
+                String indexUrl = null;
+                InputStream inputStream = null;
+                String[] indexUrls = this.repoData.getIndexUrls();
+                for (int i = 0; i < indexUrls.length; i++) {
+                    long mirrorStart = System.currentTimeMillis();
+                    try {
+                        validators = this.repoData.getIndexValidators(indexUrls[i]);
+                        inputStream = Http.doHttpGetStream(indexUrls[i], validators);
+                        indexUrl = indexUrls[i];
+                        this.repoData.reportIndexUrl(indexUrls[i],
+                                System.currentTimeMillis() - mirrorStart, true);
+                        break;
+                    } catch (IOException e) {
+                        this.repoData.reportIndexUrl(indexUrls[i],
+                                System.currentTimeMillis() - mirrorStart, false);
+                        if (i == indexUrls.length - 1) throw e;
+                        Log.w(TAG, "Failed to get manifest from " +
+                                indexUrls[i] + ", trying next mirror", e);
+                    }
+                }
+                if (inputStream == null) {
+                    Log.d(TAG, "Index of " + this.repoData.id + " is not modified");
+                    // Nothing changed since last time, just reuse what we have
+                    this.notModified = true;
+                    this.toUpdate = this.repoData.copyInvalidModules();
+                    this.toApply = new HashSet<>(this.repoData.moduleHashMap.values());
+                    this.toApply.removeAll(this.toUpdate);
+                    this.repoData.health.onSuccess(System.currentTimeMillis() - start);
+                    return this.toUpdate.size();
+                }
+                // Parse the index as it is downloaded, and keep a copy for the cache
+                try (TeeInputStream teeInputStream = new TeeInputStream(
+                        inputStream, new FileOutputStream(this.indexTemp));
+                     JsonReader jsonReader = new JsonReader(new InputStreamReader(
+                             teeInputStream, StandardCharsets.UTF_8))) {
+                    this.toUpdate = this.repoData.populate(jsonReader);
+                    teeInputStream.drain();
+                }
+                this.indexFetched = true;
+                this.validators = validators;
+                this.validatorsUrl = indexUrl;
+            }
             // Since we reuse instances this should work
             this.toApply = new HashSet<>(this.repoData.moduleHashMap.values());
             this.toApply.removeAll(this.toUpdate);
+            this.repoData.health.onSuccess(System.currentTimeMillis() - start);
+            if (this.repoData.metadataArchiveUrl != null && !this.toUpdate.isEmpty()) {
+                this.fetchMetadataArchive(this.repoData.metadataArchiveUrl);
+            }
             // Return repo to update
             return this.toUpdate.size();
         } catch (Exception e) {
             Log.e(TAG, "Failed to get manifest", e);
-            this.indexRaw = null;
+            this.repoData.health.onFailure(System.currentTimeMillis() - start);
+            this.indexFetched = false;
+            this.indexTemp.delete();
+            if (this.toUpdate != null) {
+                // Index may be partially applied, make sure these get updated next time
+                for (RepoModule repoModule : this.toUpdate) {
+                    repoModule.lastUpdated = 0;
+                }
+            }
+            // Keep showing cached modules, modules without metadata are skipped
             this.toUpdate = Collections.emptyList();
-            this.toApply = Collections.emptySet();
+            this.toApply = new HashSet<>(this.repoData.moduleHashMap.values());
             return 0;
         }
     }
 
+    /**
+     * Update the index with only what changed since the cached one, the merged
+     * index is written like a fetched one. Return false if the full index need
+     * to be fetched instead.
+     */
+    private boolean fetchDelta(String deltaUrl) {
+        final String arrayKey = this.repoData.getIndexArrayKey();
+        try {
+            InputStream inputStream = Http.doHttpGetStream(deltaUrl, new Http.Validators());
+            if (inputStream == null) {
+                Log.d(TAG, "Index of " + this.repoData.id + " is not modified");
+                this.notModified = true;
+                this.toUpdate = this.repoData.copyInvalidModules();
+                return true;
+            }
+            // Keep the response, servers not supporting delta just send the full index
+            JSONObject jsonObject;
+            try (TeeInputStream teeInputStream = new TeeInputStream(
+                    inputStream, new FileOutputStream(this.indexTemp));
+                 JsonReader jsonReader = new JsonReader(new InputStreamReader(
+                         teeInputStream, StandardCharsets.UTF_8))) {
+                jsonObject = RepoData.readIndex(jsonReader, arrayKey, entry -> {});
+                teeInputStream.drain();
+            }
+            if (jsonObject.optBoolean("delta", false)) {
+                this.toUpdate = this.applyDelta(jsonObject);
+            } else {
+                try (JsonReader jsonReader = new JsonReader(new InputStreamReader(
+                        new FileInputStream(this.indexTemp), StandardCharsets.UTF_8))) {
+                    this.toUpdate = this.repoData.populate(jsonReader);
+                }
+            }
+            this.indexFetched = true;
+            // Validators of the full index doesn't match the merged index
+            this.validators = null;
+            this.validatorsUrl = null;
+            return true;
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to get delta of " + this.repoData.id +
+                    ", getting full index instead", e);
+            this.indexTemp.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Merge the delta saved in {@link #indexTemp} with the cached index, the
+     * cached index is streamed so only changed entries are kept in memory.
+     * @param delta top level values of the delta
+     */
+    private List<RepoModule> applyDelta(JSONObject delta) throws IOException, JSONException {
+        final String arrayKey = this.repoData.getIndexArrayKey();
+        final String idKey = this.repoData.getIndexIdKey();
+        final LinkedHashMap<String, JSONObject> changed = new LinkedHashMap<>();
+        try (JsonReader jsonReader = new JsonReader(new InputStreamReader(
+                new FileInputStream(this.indexTemp), StandardCharsets.UTF_8))) {
+            RepoData.readIndex(jsonReader, arrayKey,
+                    entry -> changed.put(entry.getString(idKey), entry));
+        }
+        final HashSet<String> removed = new HashSet<>();
+        JSONArray removedArray = delta.optJSONArray("removed");
+        if (removedArray != null) {
+            for (int i = 0; i < removedArray.length(); i++) {
+                removed.add(removedArray.optString(i));
+            }
+        }
+        Log.d(TAG, "Got delta of " + this.repoData.id + ": " + changed.size() +
+                " changed, " + removed.size() + " removed");
+        final RepoData.IndexUpdate indexUpdate = new RepoData.IndexUpdate();
+        JSONObject jsonObject;
+        // Written like a fetched index, with entries first as the header is read last
+        try (JsonReader jsonReader = new JsonReader(new InputStreamReader(
+                new FileInputStream(this.repoData.metaDataCache), StandardCharsets.UTF_8));
+             Writer writer = new BufferedWriter(new OutputStreamWriter(
+                     new FileOutputStream(this.indexTemp), StandardCharsets.UTF_8))) {
+            writer.write('{');
+            writer.write(JSONObject.quote(arrayKey));
+            writer.write(":[");
+            final boolean[] first = {true};
+            RepoData.IndexEntryHandler handler = entry -> {
+                if (!first[0]) writer.write(',');
+                first[0] = false;
+                writer.write(entry.toString());
+                this.repoData.stageModule(indexUpdate, entry);
+            };
+            jsonObject = RepoData.readIndex(jsonReader, arrayKey, entry -> {
+                String id = entry.optString(idKey);
+                if (removed.contains(id)) return;
+                JSONObject changedEntry = changed.remove(id);
+                handler.onEntry(changedEntry == null ? entry : changedEntry);
+            });
+            for (JSONObject entry : changed.values()) {
+                handler.onEntry(entry);
+            }
+            writer.write(']');
+            Iterator<String> keys = delta.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (!key.equals("delta") && !key.equals("removed"))
+                    jsonObject.put(key, delta.get(key));
+            }
+            if (jsonObject.length() != 0) {
+                String header = jsonObject.toString();
+                writer.write(',');
+                writer.write(header, 1, header.length() - 2);
+            }
+            writer.write('}');
+        }
+        this.repoData.setDeltaUrl(jsonObject.optString("delta_url", ""));
+        // Applied as a full index, so removed modules are removed from the cache too
+        return this.repoData.applyIndex(jsonObject, indexUpdate);
+    }
+
+    /**
+     * Load module.prop files from the repo metadata archive, modules
+     * that are not in the archive still need to be fetched one by one.
+     */
+    private void fetchMetadataArchive(String url) {
+        HashMap<String, RepoModule> modules = new HashMap<>();
+        for (RepoModule repoModule : this.toUpdate) {
+            modules.put(repoModule.id, repoModule);
+        }
+        Set<String> stored;
+        try {
+            stored = RepoMetadataArchive.fetch(url, this.repoData, modules);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to get metadata archive of " +
+                    this.repoData.id + ", using prop files instead", e);
+            return;
+        }
+        Log.d(TAG, "Got " + stored.size() + " prop files from metadata archive");
+        boolean allowLowQualityModules = MainApplication.isDisableLowQualityModuleFilter();
+        List<RepoModule> remaining = new ArrayList<>();
+        for (RepoModule repoModule : this.toUpdate) {
+            if (stored.contains(repoModule.id) &&
+                    this.repoData.tryLoadMetadata(repoModule)) {
+                repoModule.metadataPending = false;
+                if (allowLowQualityModules ||
+                        !PropUtils.isLowQualityModule(repoModule.moduleInfo)) {
+                    this.toApply.add(repoModule);
+                }
+            } else {
+                remaining.add(repoModule);
+            }
+        }
+        this.toUpdate = remaining;
+    }
+
     public List<RepoModule> toUpdate() {
         return this.toUpdate;
     }
@@ -64,18 +315,114 @@ public class RepoUpdater {
         return this.toApply;
     }
 
+    /**
+     * @return true if the repo was not checked because it's disabled or unhealthy
+     */
+    public boolean isSkipped() {
+        return this.skipped;
+    }
+
     public boolean finish() {
-        final boolean success = this.indexRaw != null;
-        if (this.indexRaw != null) {
-            try {
-                Files.write(this.repoData.metaDataCache, this.indexRaw);
-            } catch (IOException e) {
-                e.printStackTrace();
+        final boolean success = this.indexFetched || this.notModified || this.fresh;
+        if (this.indexFetched || this.notModified) {
+            this.repoData.setLastCheck(System.currentTimeMillis());
+        }
+        if (this.indexFetched) {
+            if (this.indexTemp.renameTo(this.repoData.metaDataCache)) {
+                this.repoData.setIndexValidators(this.validatorsUrl, this.validators);
+                RepoSnapshot.write(this.repoData);
+            } else {
+                Log.e(TAG, "Failed to save index of " + this.repoData.id);
+                this.indexTemp.delete();
+                this.repoData.setIndexValidators(null, null);
             }
-            this.indexRaw = null;
+            this.indexFetched = false;
+        } else if ((this.notModified || this.fresh) && !this.toUpdate.isEmpty()) {
+            // Save metadata of modules that were retried
+            RepoSnapshot.write(this.repoData);
         }
+        this.validators = null;
+        this.validatorsUrl = null;
+        this.notModified = false;
+        this.fresh = false;
+        this.skipped = false;
         this.toUpdate = null;
         this.toApply = null;
         return success;
     }
+
+    /**
+     * Discard the fetched index, modules that were going
+     * to be updated will be updated on the next fetch.
+     */
+    public void abort() {
+        if (this.toUpdate != null) {
+            for (RepoModule repoModule : this.toUpdate) {
+                repoModule.lastUpdated = 0;
+            }
+        }
+        this.indexTemp.delete();
+        this.indexFetched = false;
+        this.validators = null;
+        this.validatorsUrl = null;
+        this.notModified = false;
+        this.fresh = false;
+        this.skipped = false;
+        this.toUpdate = null;
+        this.toApply = null;
+    }
+
+    /**
+     * Copy everything that is read to the output stream
+     */
+    private static class TeeInputStream extends FilterInputStream {
+        private final OutputStream outputStream;
+
+        TeeInputStream(InputStream inputStream, OutputStream outputStream) {
+            super(inputStream);
+            this.outputStream = outputStream;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) this.outputStream.write(b);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) this.outputStream.write(b, off, read);
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buff = new byte[(int) Math.min(n, 4096)];
+            int read = this.read(buff, 0, buff.length);
+            return Math.max(read, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        // Read the remaining data so the copy is complete
+        void drain() throws IOException {
+            byte[] buff = new byte[4096];
+            //noinspection StatementWithEmptyBody
+            while (this.read(buff, 0, buff.length) != -1);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                this.outputStream.close();
+            }
+        }
+    }
 }
@@ -13,6 +13,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
@@ -74,6 +75,17 @@ public class Files {
             bytes[0x7] = 0x8; // Known hax to prevent java zip file read
     }
 
+    public static void fixJavaZipHax(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            byte[] bytes = new byte[9];
+            if (randomAccessFile.read(bytes) != bytes.length) return;
+            if (bytes[0x6] == 0x0 && bytes[0x7] == 0x0 && bytes[0x8] == 0x8) {
+                randomAccessFile.seek(0x7);
+                randomAccessFile.write(0x8); // Known hax to prevent java zip file read
+            }
+        }
+    }
+
     public static void patchModuleSimple(byte[] bytes,OutputStream outputStream) throws IOException {
         fixJavaZipHax(bytes); patchModuleSimple(new ByteArrayInputStream(bytes), outputStream);
     }
@@ -88,6 +88,38 @@ public class Hashes {
         return hash.equals(checksum.toLowerCase(Locale.ROOT));
     }
 
+    /**
+     * Get a digest of the algorithm used by the checksum, so the checksum
+     * can be computed while data is being written.
+     * @return null if the checksum is empty or has no known algorithm
+     */
+    public static MessageDigest checkSumDigest(String checksum) {
+        String algorithm = checkSumName(checksum);
+        if (algorithm == null) return null;
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Check if the checksum match data fed to a digest
+     * returned by {@link #checkSumDigest(String)}
+     */
+    public static boolean checkSumMatch(MessageDigest messageDigest, String checksum) {
+        if (checksum == null) return false;
+        if (checksum.isEmpty()) return true; // No checksum
+        if (messageDigest == null) {
+            Log.e(TAG, "No hash algorithm for " +
+                    checksum.length() * 8 + "bit checksums");
+            return false;
+        }
+        String hash = bytesToHex(messageDigest.digest());
+        Log.d(TAG, "Checksum result (data: " + hash+ ",expected: " + checksum + ")");
+        return hash.equals(checksum.toLowerCase(Locale.ROOT));
+    }
+
     public static boolean checkSumValid(String checksum) {
         if (checksum == null) return false;
         switch (checksum.length()) {
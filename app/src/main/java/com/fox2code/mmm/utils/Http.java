@@ -1,12 +1,15 @@
 package com.fox2code.mmm.utils;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.os.Build;
+import android.os.SystemClock;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.util.Log;
+import android.util.LruCache;
 import android.webkit.CookieManager;
 
 import androidx.annotation.NonNull;
@@ -16,27 +19,42 @@ import com.fox2code.mmm.BuildConfig;
 import com.fox2code.mmm.MainApplication;
 import com.fox2code.mmm.installer.InstallerInitializer;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Proxy;
 import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 
 import okhttp3.Cache;
+import okhttp3.CacheControl;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
 import okhttp3.Cookie;
 import okhttp3.CookieJar;
+import okhttp3.Dispatcher;
 import okhttp3.Dns;
 import okhttp3.HttpUrl;
 import okhttp3.MediaType;
@@ -48,15 +66,45 @@ import okhttp3.ResponseBody;
 import okhttp3.brotli.BrotliInterceptor;
 import okhttp3.dnsoverhttps.DnsOverHttps;
 import okio.BufferedSink;
+import okio.Okio;
 
 public class Http {
     private static final String TAG = "Http";
     private static final OkHttpClient httpClient;
     private static final OkHttpClient httpClientDoH;
-    private static final OkHttpClient httpClientWithCache;
-    private static final OkHttpClient httpClientWithCacheDoH;
+    // Cache partitions, so big images don't evict metadata we need at startup
+    public static final int CACHE_METADATA = 0;
+    public static final int CACHE_DOCUMENTS = 1;
+    public static final int CACHE_IMAGES = 2;
+    private static final String[] CACHE_NAMES = {"metadata", "documents", "images"};
+    private static final String[] CACHE_DIRS = { // Metadata keep the old cache dir
+            "http_cache", "http_cache_documents", "http_cache_images"};
+    // Default budgets are a fraction of the free storage, bounded in MiB
+    private static final int[] CACHE_STORAGE_DIVIDERS = {200, 200, 100};
+    private static final int[] CACHE_MIN_SIZES = {8, 8, 16};
+    private static final int[] CACHE_MAX_SIZES = {32, 32, 128};
+    private static final OkHttpClient[] httpClientsWithCache;
+    private static final OkHttpClient[] httpClientsWithCacheDoH;
     private static final FallBackDNS fallbackDNS;
     private static final String androidacyUA;
+    // Hosts used whatever repos are enabled, api.github.com is not
+    // included as requests to it count against its rate limit
+    private static final String[] knownHosts = new String[]{
+            "raw.githubusercontent.com", "camo.githubusercontent.com",
+            "user-images.githubusercontent.com", "img.shields.io"};
+    private static final ConcurrentHashMap<String, FutureTask<byte[]>> inFlight =
+            new ConcurrentHashMap<>();
+    // Small and hot responses, so they don't have to be read from disk every time
+    private static final int MEMORY_CACHE_SIZE = (int) Math.min(
+            Runtime.getRuntime().maxMemory() / 32, 4 * 1024 * 1024);
+    private static final int MEMORY_CACHE_MAX_ENTRY = MEMORY_CACHE_SIZE / 8;
+    private static final LruCache<String, MemoryCacheEntry> memoryCache =
+            new LruCache<String, MemoryCacheEntry>(MEMORY_CACHE_SIZE) {
+                @Override
+                protected int sizeOf(String key, MemoryCacheEntry value) {
+                    return value.data.length + key.length();
+                }
+            };
     private static boolean doh;
 
     static {
@@ -80,6 +128,13 @@ public class Http {
         httpclientBuilder.connectTimeout(15, TimeUnit.SECONDS);
         httpclientBuilder.writeTimeout(15, TimeUnit.SECONDS);
         httpclientBuilder.readTimeout(15, TimeUnit.SECONDS);
+        // Shared by all clients, sized for parallel repo and update fetching
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(64);
+        dispatcher.setMaxRequestsPerHost(8);
+        httpclientBuilder.dispatcher(dispatcher);
+        httpclientBuilder.connectionPool(new ConnectionPool(16, 5, TimeUnit.MINUTES));
+        httpclientBuilder.eventListenerFactory(HttpMetrics.FACTORY);
         httpclientBuilder.addInterceptor(BrotliInterceptor.INSTANCE);
         httpclientBuilder.proxy(Proxy.NO_PROXY); // Do not use system proxy
         Dns dns = Dns.SYSTEM;
@@ -144,13 +199,14 @@ public class Http {
         httpClient = httpclientBuilder.build();
         httpclientBuilder.dns(fallbackDNS);
         httpClientDoH = httpclientBuilder.build();
-        httpclientBuilder.cache(new Cache(
-                new File(mainApplication.getCacheDir(), "http_cache"),
-                16L * 1024L * 1024L)); // 16Mib of cache
-        httpclientBuilder.dns(Dns.SYSTEM);
-        httpClientWithCache = httpclientBuilder.build();
-        httpclientBuilder.dns(fallbackDNS);
-        httpClientWithCacheDoH = httpclientBuilder.build();
+        httpClientsWithCache = new OkHttpClient[CACHE_NAMES.length];
+        httpClientsWithCacheDoH = new OkHttpClient[CACHE_NAMES.length];
+        for (int i = 0; i < CACHE_NAMES.length; i++) {
+            Cache cache = new Cache(new File(mainApplication.getCacheDir(),
+                    CACHE_DIRS[i]), getCacheSize(mainApplication, i));
+            httpClientsWithCache[i] = httpClient.newBuilder().cache(cache).build();
+            httpClientsWithCacheDoH[i] = httpClientDoH.newBuilder().cache(cache).build();
+        }
         Log.i(TAG, "Initialized Http successfully!");
         doh = MainApplication.isDohEnabled();
     }
@@ -160,13 +216,175 @@ public class Http {
     }
 
     public static OkHttpClient getHttpClientWithCache() {
-        return doh ? httpClientWithCacheDoH : httpClientWithCache;
+        return getHttpClientWithCache(CACHE_METADATA);
+    }
+
+    /**
+     * @param cache one of {@link #CACHE_METADATA}, {@link #CACHE_DOCUMENTS}
+     *              or {@link #CACHE_IMAGES}
+     */
+    public static OkHttpClient getHttpClientWithCache(int cache) {
+        return (doh ? httpClientsWithCacheDoH : httpClientsWithCache)[cache];
+    }
+
+    /**
+     * Budget of a cache partition, can be set in MiB with the
+     * {@code pref_cache_<name>_size} preferences.
+     */
+    private static long getCacheSize(MainApplication mainApplication, int cache) {
+        long size;
+        try {
+            size = Long.parseLong(MainApplication.getSharedPreferences().getString(
+                    "pref_cache_" + CACHE_NAMES[cache] + "_size", "-1"));
+        } catch (RuntimeException e) {
+            size = -1;
+        }
+        if (size < 0) {
+            size = mainApplication.getCacheDir().getUsableSpace() /
+                    CACHE_STORAGE_DIVIDERS[cache] / (1024L * 1024L);
+            size = Math.max(CACHE_MIN_SIZES[cache], Math.min(size, CACHE_MAX_SIZES[cache]));
+        }
+        Log.d(TAG, "Cache " + CACHE_NAMES[cache] + " size: " + size + "MiB");
+        return Math.max(size, 1) * 1024L * 1024L;
     }
 
     public static byte[] doHttpGet(String url,boolean allowCache) throws IOException {
-        Response response = (allowCache ? getHttpClientWithCache() : getHttpClient()).newCall(
-                new Request.Builder().url(url).get().build()
-        ).execute();
+        if (allowCache) return doHttpGetWithMemoryCache(url, CACHE_METADATA);
+        return singleFlight(url, () -> doHttpGet(getHttpClient(),
+                new Request.Builder().url(url).get().build(), false));
+    }
+
+    /**
+     * Same as {@code doHttpGet(url, true)} but use the documents cache,
+     * for markdown and other big text files.
+     */
+    public static byte[] doHttpGetDocument(String url) throws IOException {
+        return doHttpGetWithMemoryCache(url, CACHE_DOCUMENTS);
+    }
+
+    private static byte[] doHttpGetWithMemoryCache(String url, int cache) throws IOException {
+        return doHttpGetWithMemoryCache(url, cache, 0);
+    }
+
+    private static byte[] doHttpGetWithMemoryCache(String url, int cache,
+                                                   long maxStale) throws IOException {
+        MemoryCacheEntry memoryCacheEntry = memoryCache.get(url);
+        if (memoryCacheEntry != null && memoryCacheEntry.isFresh(maxStale))
+            return memoryCacheEntry.data.clone();
+        return singleFlight(maxStale <= 0 ? "cache:" + url : "stale:" + maxStale + ":" + url,
+                () -> doHttpGetMemoryCached(url, cache, maxStale));
+    }
+
+    /**
+     * Same as {@code doHttpGet(url, true)} but keep small responses in memory,
+     * if the disk cache or the server say our copy is still the current one,
+     * the memory copy is used instead of reading the response again.
+     */
+    private static byte[] doHttpGetMemoryCached(String url, int cache,
+                                                long maxStale) throws IOException {
+        Request.Builder request = new Request.Builder().url(url).get();
+        if (maxStale > 0) {
+            request.cacheControl(new CacheControl.Builder().maxStale(
+                    (int) Math.min(maxStale / 1000L, Integer.MAX_VALUE),
+                    TimeUnit.SECONDS).build());
+        }
+        Response response = getHttpClientWithCache(cache).newCall(request.build()).execute();
+        // 200/204 == success, 304 == cache valid
+        if (response.code() != 200 && response.code() != 204 && response.code() != 304) {
+            response.close();
+            throw new IOException("Received error code: "+ response.code());
+        }
+        String eTag = response.header("ETag");
+        String lastModified = response.header("Last-Modified");
+        MemoryCacheEntry memoryCacheEntry = memoryCache.get(url);
+        byte[] data;
+        if (memoryCacheEntry != null && memoryCacheEntry.matches(eTag, lastModified)) {
+            ResponseBody responseBody = response.body();
+            // Closing a network body early would abort its write to the disk cache
+            if (responseBody != null && response.networkResponse() != null) {
+                responseBody.source().readAll(Okio.blackhole());
+            }
+            response.close();
+            data = memoryCacheEntry.data;
+        } else {
+            ResponseBody responseBody = response.body();
+            // Use cache api if used cached response
+            if (responseBody == null && response.code() == 304) {
+                Response cacheResponse = response.cacheResponse();
+                if (cacheResponse != null)
+                    responseBody = cacheResponse.body();
+            }
+            data = responseBody == null ? new byte[0] : responseBody.bytes();
+        }
+        CacheControl cacheControl = response.cacheControl();
+        // Responses without max-age are still worth keeping if they can be used stale
+        if (cacheControl.noStore() || (cacheControl.maxAgeSeconds() <= 0 && maxStale <= 0) ||
+                data.length > MEMORY_CACHE_MAX_ENTRY) {
+            memoryCache.remove(url);
+        } else {
+            // Responses read from the disk cache are already partially expired
+            long age = Math.max(System.currentTimeMillis() -
+                    response.receivedResponseAtMillis(), 0);
+            memoryCache.put(url, new MemoryCacheEntry(data, eTag, lastModified,
+                    Math.max(cacheControl.maxAgeSeconds(), 0) * 1000L - age));
+        }
+        return data.clone();
+    }
+
+    /**
+     * Release memory used by cached responses, called by
+     * {@link android.app.Application#onTrimMemory(int)}
+     */
+    public static void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND ||
+                level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            memoryCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            memoryCache.trimToSize(memoryCache.maxSize() / 2);
+        }
+    }
+
+    /**
+     * Same as {@code doHttpGet(url, true)}, but cached responses are used
+     * without checking with the server until they are older than maxStale
+     */
+    public static byte[] doHttpGetCached(String url,long maxStale) throws IOException {
+        return doHttpGetCached(url, maxStale, CACHE_METADATA);
+    }
+
+    public static byte[] doHttpGetCached(String url,long maxStale,int cache) throws IOException {
+        return doHttpGetWithMemoryCache(url, cache, Math.max(maxStale, 0));
+    }
+
+    /**
+     * Concurrent requests with the same key share the same network call,
+     * callers waiting for another call get their own copy of the data.
+     */
+    private static byte[] singleFlight(String key, Callable<byte[]> request) throws IOException {
+        FutureTask<byte[]> task = new FutureTask<>(request);
+        FutureTask<byte[]> current = inFlight.putIfAbsent(key, task);
+        if (current == null) {
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+        }
+        try {
+            return current == null ? task.get() : current.get().clone();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static byte[] doHttpGet(OkHttpClient httpClient,Request request,
+                                    boolean allowCache) throws IOException {
+        Response response = httpClient.newCall(request).execute();
         // 200/204 == success, 304 == cache valid
         if (response.code() != 200 && response.code() != 204 &&
                 (response.code() != 304 || !allowCache)) {
@@ -182,6 +400,37 @@ public class Http {
         return responseBody == null ? new byte[0] : responseBody.bytes();
     }
 
+    /**
+     * Do a conditional GET request using validators of a previous response,
+     * return null if the server reported the content as not modified.
+     * On success validators are updated with the ones of the new response.
+     *
+     * The returned stream must be closed to release the connection.
+     */
+    @Nullable
+    public static InputStream doHttpGetStream(String url,Validators validators) throws IOException {
+        Request.Builder request = new Request.Builder().url(url).get();
+        if (validators.eTag != null)
+            request.header("If-None-Match", validators.eTag);
+        if (validators.lastModified != null)
+            request.header("If-Modified-Since", validators.lastModified);
+        Response response = getHttpClient().newCall(request.build()).execute();
+        if (response.code() == 304) {
+            response.close();
+            return null;
+        }
+        // 200/204 == success
+        if (response.code() != 200 && response.code() != 204) {
+            response.close();
+            throw new IOException("Received error code: "+ response.code());
+        }
+        validators.eTag = response.header("ETag");
+        validators.lastModified = response.header("Last-Modified");
+        ResponseBody responseBody = response.body();
+        return responseBody == null ? new ByteArrayInputStream(new byte[0]) :
+                responseBody.byteStream();
+    }
+
     public static byte[] doHttpPost(String url,String data,boolean allowCache) throws IOException {
         Response response = (allowCache ? getHttpClientWithCache() : getHttpClient()).newCall(
                 new Request.Builder().url(url).post(JsonRequestBody.from(data))
@@ -203,19 +452,174 @@ public class Http {
     }
 
     public static byte[] doHttpGet(String url,ProgressListener progressListener) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream =
+                new ByteArrayOutputStream();
+        doHttpGet(url, byteArrayOutputStream, null, progressListener);
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    /**
+     * Download straight to a file, heap usage doesn't depend on the file size.
+     * If a previous download of the same url was interrupted, the download
+     * is resumed from where it stopped when the server allow it, and big
+     * files are downloaded as multiple segments in parallel.
+     * @param messageDigest if not null, updated with the whole file data
+     */
+    public static void doHttpGet(String url, File file, MessageDigest messageDigest,
+                                 ProgressListener progressListener) throws IOException {
+        Log.d("Http", "Progress URL: " + url);
+        // Validator of the partial file, the file is only resumed if it didn't change
+        File validatorFile = new File(file.getPath() + ".validator");
+        String validator = null;
+        SegmentedDownload segmentedDownload = null;
+        if (file.exists() && validatorFile.exists()) {
+            String[] lines = new String(Files.read(validatorFile),
+                    StandardCharsets.UTF_8).split("\n");
+            if (lines.length == 2 && lines[0].equals(url)) {
+                validator = lines[1];
+            } else if (lines.length > 2 && lines[0].equals(url)) {
+                // Segmented files have holes, only saved ranges can be resumed
+                segmentedDownload = SegmentedDownload.resume(
+                        url, file, validatorFile, lines, progressListener);
+            }
+        }
+        if (segmentedDownload != null) {
+            Log.d("Http", "Resuming segmented download");
+            try {
+                segmentedDownload.download(null);
+                finishSegmentedDownload(file, validatorFile, messageDigest);
+                return;
+            } catch (IOException e) {
+                if (!segmentedDownload.isRangeRejected()) throw e;
+                // The file changed on the server, start over
+                Log.d("Http", "Segmented download outdated", e);
+                deletePartial(file, validatorFile);
+            }
+        }
+        long offset = validator == null ? 0 : file.length();
+        // Transparent decompression would make byte ranges and lengths wrong
+        Request.Builder request = new Request.Builder().url(url)
+                .header("Accept-Encoding", "identity").get();
+        if (offset > 0) {
+            Log.d("Http", "Resuming download at " + offset);
+            request.header("Range", "bytes=" + offset + "-");
+            request.header("If-Range", validator);
+        }
+        Response response = getHttpClient().newCall(request.build()).execute();
+        if (offset > 0 && response.code() == 416) {
+            // Partial file is not valid anymore, start over
+            Log.d("Http", "Range not satisfiable, restarting download");
+            response.close();
+            deletePartial(file, validatorFile);
+            offset = 0;
+            request.removeHeader("Range").removeHeader("If-Range");
+            response = getHttpClient().newCall(request.build()).execute();
+        }
+        boolean resume = offset > 0 && response.code() == 206;
+        if (!resume && response.code() != 200 && response.code() != 204) {
+            response.close();
+            throw new IOException("Received error code: "+ response.code());
+        }
+        if (resume) {
+            if (messageDigest != null) {
+                hashFile(file, messageDigest);
+            }
+        } else {
+            offset = 0;
+            String eTag = response.header("ETag");
+            // Weak ETags can't be used with If-Range
+            validator = eTag != null && !eTag.startsWith("W/") ?
+                    eTag : response.header("Last-Modified");
+            ResponseBody responseBody = response.body();
+            long length = responseBody == null ? -1 : responseBody.contentLength();
+            if (validator != null && length >= SegmentedDownload.MIN_SIZE &&
+                    "bytes".equals(response.header("Accept-Ranges"))) {
+                deletePartial(file, validatorFile);
+                segmentedDownload = new SegmentedDownload(url, file,
+                        validatorFile, length, validator, progressListener);
+                try {
+                    segmentedDownload.download(response);
+                } catch (IOException e) {
+                    // Progress of each range is kept unless ranges don't work
+                    if (segmentedDownload.isRangeRejected())
+                        deletePartial(file, validatorFile);
+                    throw e;
+                }
+                finishSegmentedDownload(file, validatorFile, messageDigest);
+                return;
+            }
+            if (validator != null) {
+                Files.write(validatorFile, (url + "\n" + validator)
+                        .getBytes(StandardCharsets.UTF_8));
+            } else if (validatorFile.exists() && !validatorFile.delete()) {
+                Log.w("Http", "Failed to delete download validator");
+            }
+        }
+        try (OutputStream outputStream = new FileOutputStream(file, resume)) {
+            writeResponse(response, outputStream, messageDigest, progressListener, offset);
+        }
+        if (validatorFile.exists() && !validatorFile.delete()) {
+            Log.w("Http", "Failed to delete download validator");
+        }
+    }
+
+    private static void finishSegmentedDownload(File file, File validatorFile,
+                                                MessageDigest messageDigest) throws IOException {
+        if (validatorFile.exists() && !validatorFile.delete()) {
+            Log.w("Http", "Failed to delete download validator");
+        }
+        if (messageDigest != null) {
+            hashFile(file, messageDigest);
+        }
+    }
+
+    private static void hashFile(File file, MessageDigest messageDigest) throws IOException {
+        try (InputStream inputStream = new FileInputStream(file)) {
+            byte[] buff = new byte[1024 * 16];
+            int read;
+            while ((read = inputStream.read(buff)) != -1) {
+                messageDigest.update(buff, 0, read);
+            }
+        }
+    }
+
+    /**
+     * Delete a file downloaded with {@link #doHttpGet(String, File, MessageDigest,
+     * ProgressListener)}, including data kept to resume it.
+     */
+    public static void deletePartial(File file) {
+        deletePartial(file, new File(file.getPath() + ".validator"));
+    }
+
+    private static void deletePartial(File file, File validatorFile) {
+        if (file.exists() && !file.delete())
+            Log.w("Http", "Failed to delete partial download");
+        if (validatorFile.exists() && !validatorFile.delete())
+            Log.w("Http", "Failed to delete download validator");
+    }
+
+    private static void doHttpGet(String url, OutputStream outputStream, MessageDigest messageDigest,
+                                  ProgressListener progressListener) throws IOException {
         Log.d("Http", "Progress URL: " + url);
         Response response = getHttpClient().newCall(
                 new Request.Builder().url(url).get().build()).execute();
         if (response.code() != 200 && response.code() != 204) {
+            response.close();
             throw new IOException("Received error code: "+ response.code());
         }
+        writeResponse(response, outputStream, messageDigest, progressListener, 0);
+    }
+
+    private static void writeResponse(Response response, OutputStream outputStream,
+                                      MessageDigest messageDigest,
+                                      ProgressListener progressListener,
+                                      long offset) throws IOException {
         ResponseBody responseBody = Objects.requireNonNull(response.body());
         InputStream inputStream = responseBody.byteStream();
-        byte[] buff = new byte[1024 * 4];
-        long downloaded = 0;
+        byte[] buff = new byte[1024 * 16];
+        long downloaded = offset;
         long target = responseBody.contentLength();
-        ByteArrayOutputStream byteArrayOutputStream =
-                new ByteArrayOutputStream();
+        if (target >= 0) target += offset;
         int divider = 1; // Make everything go in an int
         while ((target / divider) > (Integer.MAX_VALUE / 2)) {
             divider *= 2;
@@ -224,21 +628,57 @@ public class Http {
         long nextUpdate = System.currentTimeMillis() + UPDATE_INTERVAL;
         long currentUpdate;
         Log.d("Http", "Target: " + target + " Divider: " + divider);
-        progressListener.onUpdate(0, (int) (target / divider), false);
-        while (true) {
-            int read = inputStream.read(buff);
-            if(read == -1) break;
-            byteArrayOutputStream.write(buff, 0, read);
-            downloaded += read;
-            currentUpdate = System.currentTimeMillis();
-            if (nextUpdate < currentUpdate) {
-                nextUpdate = currentUpdate + UPDATE_INTERVAL;
-                progressListener.onUpdate((int) (downloaded / divider), (int) (target / divider), false);
+        progressListener.onUpdate((int) (downloaded / divider), (int) (target / divider), false);
+        try {
+            while (true) {
+                int read = inputStream.read(buff);
+                if (read == -1) break;
+                outputStream.write(buff, 0, read);
+                if (messageDigest != null)
+                    messageDigest.update(buff, 0, read);
+                downloaded += read;
+                currentUpdate = System.currentTimeMillis();
+                if (nextUpdate < currentUpdate) {
+                    nextUpdate = currentUpdate + UPDATE_INTERVAL;
+                    progressListener.onUpdate((int) (downloaded / divider), (int) (target / divider), false);
+                }
             }
+        } finally {
+            inputStream.close();
         }
-        inputStream.close();
+        outputStream.flush();
         progressListener.onUpdate((int) (downloaded / divider), (int) (target / divider), true);
-        return byteArrayOutputStream.toByteArray();
+    }
+
+    /**
+     * Open connections to known hosts and hosts of the given urls in the
+     * background, so first requests don't pay for DNS, TCP and TLS setup.
+     * Only urls of enabled repos should be given.
+     */
+    public static void prewarm(String... urls) {
+        LinkedHashSet<String> hosts = new LinkedHashSet<>();
+        for (String url : urls) {
+            HttpUrl httpUrl = HttpUrl.parse(url);
+            if (httpUrl != null && httpUrl.isHttps())
+                hosts.add(httpUrl.host());
+        }
+        hosts.addAll(Arrays.asList(knownHosts));
+        OkHttpClient httpClient = getHttpClient();
+        for (String host : hosts) {
+            // Connections are only pooled once a request has been made
+            httpClient.newCall(new Request.Builder().url("https://" + host + "/")
+                    .head().build()).enqueue(new Callback() {
+                @Override
+                public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                    Log.d(TAG, "Failed to prewarm " + host + ": " + e.getMessage());
+                }
+
+                @Override
+                public void onResponse(@NonNull Call call, @NonNull Response response) {
+                    response.close();
+                }
+            });
+        }
     }
 
     public static void cleanDnsCache() {
@@ -327,6 +767,41 @@ public class Http {
         }
     }
 
+    /**
+     * Response validators used for conditional requests
+     */
+    public static class Validators {
+        public String eTag;
+        public String lastModified;
+
+        public boolean isEmpty() {
+            return this.eTag == null && this.lastModified == null;
+        }
+    }
+
+    private static final class MemoryCacheEntry {
+        final byte[] data;
+        final String eTag;
+        final String lastModified;
+        final long expireAt;
+
+        MemoryCacheEntry(byte[] data, String eTag, String lastModified, long maxAge) {
+            this.data = data;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.expireAt = SystemClock.elapsedRealtime() + maxAge;
+        }
+
+        boolean isFresh(long maxStale) {
+            return SystemClock.elapsedRealtime() < this.expireAt + maxStale;
+        }
+
+        boolean matches(String eTag, String lastModified) {
+            if (this.eTag != null) return this.eTag.equals(eTag);
+            return this.lastModified != null && this.lastModified.equals(lastModified);
+        }
+    }
+
     public interface ProgressListener {
         void onUpdate(int downloaded,int total, boolean done);
     }
@@ -336,61 +811,128 @@ public class Http {
      * can help make the app to work later when the current DNS system
      * isn't functional or available.
      *
+     * Answers are kept in memory for {@link #TTL}, then served while being
+     * refreshed in the background for {@link #STALE_TTL}. Only one
+     * resolution per host run at a time, other lookups wait for it.
+     *
      * Note: DNS Cache is stored in user data.
      * */
     private static class FallBackDNS implements Dns {
+        // DoH doesn't give us the record TTL, so use a fixed one
+        private static final long TTL = 5 * 60 * 1000L;
+        private static final long STALE_TTL = 60 * 60 * 1000L;
+        // Answers from user data are retried sooner
+        private static final long FALLBACK_TTL = 30 * 1000L;
         private final Dns parent;
         private final SharedPreferences sharedPreferences;
         private final HashSet<String> fallbacks;
-        private final HashMap<String, List<InetAddress>> fallbackCache;
+        private final ConcurrentHashMap<String, CacheEntry> fallbackCache;
+        private final ConcurrentHashMap<String, FutureTask<List<InetAddress>>> pending;
 
         public FallBackDNS(Context context, Dns parent, String... fallbacks) {
             this.sharedPreferences = context.getSharedPreferences(
                     "mmm_dns", Context.MODE_PRIVATE);
             this.parent = parent;
             this.fallbacks = new HashSet<>(Arrays.asList(fallbacks));
-            this.fallbackCache = new HashMap<>();
+            this.fallbackCache = new ConcurrentHashMap<>();
+            this.pending = new ConcurrentHashMap<>();
         }
 
         @NonNull
         @Override
         public List<InetAddress> lookup(@NonNull String s) throws UnknownHostException {
-            if (this.fallbacks.contains(s)) {
-                List<InetAddress> addresses;
-                synchronized (this.fallbackCache) {
-                    addresses = this.fallbackCache.get(s);
-                    if (addresses != null)
-                        return addresses;
-                    try {
-                        addresses = this.parent.lookup(s);
-                        if (addresses.isEmpty() || addresses.get(0).isLoopbackAddress())
-                            throw new UnknownHostException(s);
-                        this.fallbackCache.put(s, addresses);
-                        this.sharedPreferences.edit().putString(
-                                s.replace('.', '_'), toString(addresses)).apply();
-                    } catch (UnknownHostException e) {
-                        String key = this.sharedPreferences.getString(
-                                s.replace('.', '_'), "");
-                        if (key.isEmpty()) throw e;
-                        try {
-                            addresses = fromString(key);
-                            this.fallbackCache.put(s, addresses);
-                        } catch (UnknownHostException e2) {
-                            this.sharedPreferences.edit().remove(
-                                    s.replace('.', '_')).apply();
-                            throw e;
-                        }
-                    }
-                }
-                return addresses;
-            } else {
+            if (!this.fallbacks.contains(s)) {
                 return this.parent.lookup(s);
             }
+            CacheEntry cacheEntry = this.fallbackCache.get(s);
+            if (cacheEntry != null) {
+                long now = SystemClock.elapsedRealtime();
+                if (now < cacheEntry.expireAt) {
+                    return cacheEntry.addresses;
+                } else if (now < cacheEntry.expireAt + STALE_TTL) {
+                    this.refresh(s);
+                    return cacheEntry.addresses;
+                }
+            }
+            FutureTask<List<InetAddress>> task = new FutureTask<>(() -> this.resolve(s));
+            FutureTask<List<InetAddress>> current = this.pending.putIfAbsent(s, task);
+            if (current == null) {
+                try {
+                    task.run();
+                } finally {
+                    this.pending.remove(s, task);
+                }
+                current = task;
+            }
+            try {
+                return current.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof UnknownHostException)
+                    throw (UnknownHostException) e.getCause();
+                UnknownHostException unknownHostException = new UnknownHostException(s);
+                unknownHostException.initCause(e.getCause());
+                throw unknownHostException;
+            } catch (InterruptedException e) {
+                throw new UnknownHostException(s);
+            }
+        }
+
+        private void refresh(String s) {
+            FutureTask<List<InetAddress>> task = new FutureTask<>(() -> this.resolve(s));
+            if (this.pending.putIfAbsent(s, task) != null) return;
+            new Thread(() -> {
+                try {
+                    task.run();
+                } finally {
+                    this.pending.remove(s, task);
+                }
+            }, "DNS refresh thread").start();
+        }
+
+        private List<InetAddress> resolve(String s) throws UnknownHostException {
+            List<InetAddress> addresses;
+            try {
+                addresses = this.parent.lookup(s);
+                if (addresses.isEmpty() || addresses.get(0).isLoopbackAddress())
+                    throw new UnknownHostException(s);
+                this.fallbackCache.put(s, new CacheEntry(addresses, TTL));
+                String value = toString(addresses);
+                if (!value.equals(this.sharedPreferences.getString(
+                        s.replace('.', '_'), ""))) {
+                    this.sharedPreferences.edit().putString(
+                            s.replace('.', '_'), value).apply();
+                }
+            } catch (UnknownHostException e) {
+                CacheEntry cacheEntry = this.fallbackCache.get(s);
+                if (cacheEntry != null) { // Keep stale answer
+                    return cacheEntry.addresses;
+                }
+                String key = this.sharedPreferences.getString(
+                        s.replace('.', '_'), "");
+                if (key.isEmpty()) throw e;
+                try {
+                    addresses = fromString(key);
+                    this.fallbackCache.put(s, new CacheEntry(addresses, FALLBACK_TTL));
+                } catch (UnknownHostException e2) {
+                    this.sharedPreferences.edit().remove(
+                            s.replace('.', '_')).apply();
+                    throw e;
+                }
+            }
+            return addresses;
         }
 
         void cleanDnsCache() {
-            synchronized (this.fallbackCache) {
-                this.fallbackCache.clear();
+            this.fallbackCache.clear();
+        }
+
+        private static final class CacheEntry {
+            final List<InetAddress> addresses;
+            final long expireAt;
+
+            CacheEntry(List<InetAddress> addresses, long ttl) {
+                this.addresses = addresses;
+                this.expireAt = SystemClock.elapsedRealtime() + ttl;
             }
         }
 
@@ -485,14 +1027,7 @@ public class Http {
             return "https://cdn.jsdelivr.net/gh/" +
                     tokens[0] + "/" + tokens[1] + "@" + tokens[2] + "/" + tokens[3];
         }
-        if (string.startsWith("https://github.com/")) {
-            int i = string.lastIndexOf("/archive/");
-            if (i == -1 || string.indexOf('/', i + 9) != -1)
-                return string; // Not an archive link
-            String[] tokens = string.substring(19).split("/", 4);
-            return "https://cdn.jsdelivr.net/gh/" +
-                    tokens[0] + "/" + tokens[1] + "@" + tokens[2] + "/" + tokens[3];
-        }
+        // Note: jsDelivr doesn't serve GitHub archives, so keep them as is.
         return string;
     }
 }
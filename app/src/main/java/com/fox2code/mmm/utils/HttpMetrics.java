@@ -0,0 +1,238 @@
+package com.fox2code.mmm.utils;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Response;
+
+/**
+ * Per host timings and counters of all requests made through {@link Http},
+ * used to find out why requests are slow.
+ */
+public final class HttpMetrics {
+    private static final ConcurrentHashMap<String, HostMetrics> hosts =
+            new ConcurrentHashMap<>();
+    static final EventListener.Factory FACTORY = call ->
+            new CallListener(getOrCreate(call.request().url().host()));
+
+    private HttpMetrics() {}
+
+    /**
+     * @return metrics of the host, or null if no request was made to it
+     */
+    public static HostMetrics get(String host) {
+        return hosts.get(host);
+    }
+
+    public static Map<String, HostMetrics> getAll() {
+        return Collections.unmodifiableMap(new HashMap<>(hosts));
+    }
+
+    public static void reset() {
+        hosts.clear();
+    }
+
+    @NonNull
+    public static String dump() {
+        StringBuilder stringBuilder = new StringBuilder();
+        for (Map.Entry<String, HostMetrics> entry : hosts.entrySet()) {
+            stringBuilder.append(entry.getKey()).append(": ")
+                    .append(entry.getValue()).append('\n');
+        }
+        return stringBuilder.toString();
+    }
+
+    private static HostMetrics getOrCreate(String host) {
+        HostMetrics hostMetrics = hosts.get(host);
+        if (hostMetrics == null) {
+            hostMetrics = new HostMetrics();
+            HostMetrics current = hosts.putIfAbsent(host, hostMetrics);
+            if (current != null) hostMetrics = current;
+        }
+        return hostMetrics;
+    }
+
+    public static final class HostMetrics {
+        public final Histogram dns = new Histogram();
+        public final Histogram connect = new Histogram();
+        public final Histogram tls = new Histogram();
+        public final Histogram timeToFirstByte = new Histogram();
+        public final Histogram total = new Histogram();
+        public final AtomicLong bytes = new AtomicLong();
+        public final AtomicLong failures = new AtomicLong();
+        public final AtomicLong cacheHits = new AtomicLong();
+        public final AtomicLong cacheMisses = new AtomicLong();
+        public final AtomicLong cacheConditionalHits = new AtomicLong();
+
+        private HostMetrics() {}
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "calls=" + this.total.getCount() + " failures=" + this.failures.get() +
+                    " bytes=" + this.bytes.get() + " cache(hit=" + this.cacheHits.get() +
+                    " miss=" + this.cacheMisses.get() + " conditional=" +
+                    this.cacheConditionalHits.get() + ") dns=" + this.dns +
+                    " connect=" + this.connect + " tls=" + this.tls +
+                    " ttfb=" + this.timeToFirstByte + " total=" + this.total;
+        }
+    }
+
+    /**
+     * Histogram of durations in milliseconds using power of two buckets,
+     * recording only does a few atomic increments.
+     */
+    public static final class Histogram {
+        private static final int BUCKETS = 20; // Up to ~9 minutes
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+
+        private Histogram() {}
+
+        void record(long millis) {
+            if (millis < 0) return;
+            int bucket = 64 - Long.numberOfLeadingZeros(millis);
+            this.buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+            this.count.incrementAndGet();
+            this.sum.addAndGet(millis);
+        }
+
+        public long getCount() {
+            return this.count.get();
+        }
+
+        public long getAverage() {
+            long count = this.count.get();
+            return count == 0 ? 0 : this.sum.get() / count;
+        }
+
+        /**
+         * @return upper bound in milliseconds of the bucket containing the percentile
+         */
+        public long getPercentile(double percentile) {
+            long count = this.count.get();
+            if (count == 0) return 0;
+            long target = (long) Math.ceil(count * percentile);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += this.buckets.get(i);
+                if (seen >= target) return i == 0 ? 0 : 1L << i;
+            }
+            return 1L << (BUCKETS - 1);
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%dms(p50<=%d,p90<=%d)",
+                    this.getAverage(), this.getPercentile(0.5D), this.getPercentile(0.9D));
+        }
+    }
+
+    private static final class CallListener extends EventListener {
+        private final HostMetrics hostMetrics;
+        private long callStart;
+        private long dnsStart;
+        private long connectStart;
+        private long secureConnectStart;
+
+        private CallListener(HostMetrics hostMetrics) {
+            this.hostMetrics = hostMetrics;
+        }
+
+        private static long since(long start) {
+            return (System.nanoTime() - start) / 1_000_000L;
+        }
+
+        @Override
+        public void callStart(@NonNull Call call) {
+            this.callStart = System.nanoTime();
+        }
+
+        @Override
+        public void dnsStart(@NonNull Call call, @NonNull String domainName) {
+            this.dnsStart = System.nanoTime();
+        }
+
+        @Override
+        public void dnsEnd(@NonNull Call call, @NonNull String domainName,
+                           @NonNull List<InetAddress> inetAddressList) {
+            this.hostMetrics.dns.record(since(this.dnsStart));
+        }
+
+        @Override
+        public void connectStart(@NonNull Call call, @NonNull InetSocketAddress inetSocketAddress,
+                                 @NonNull Proxy proxy) {
+            this.connectStart = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectStart(@NonNull Call call) {
+            this.secureConnectStart = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectEnd(@NonNull Call call, Handshake handshake) {
+            this.hostMetrics.tls.record(since(this.secureConnectStart));
+        }
+
+        @Override
+        public void connectEnd(@NonNull Call call, @NonNull InetSocketAddress inetSocketAddress,
+                               @NonNull Proxy proxy, Protocol protocol) {
+            this.hostMetrics.connect.record(since(this.connectStart));
+        }
+
+        @Override
+        public void responseHeadersStart(@NonNull Call call) {
+            this.hostMetrics.timeToFirstByte.record(since(this.callStart));
+        }
+
+        @Override
+        public void responseBodyEnd(@NonNull Call call, long byteCount) {
+            this.hostMetrics.bytes.addAndGet(byteCount);
+        }
+
+        @Override
+        public void cacheHit(@NonNull Call call, @NonNull Response response) {
+            this.hostMetrics.cacheHits.incrementAndGet();
+        }
+
+        @Override
+        public void cacheMiss(@NonNull Call call) {
+            this.hostMetrics.cacheMisses.incrementAndGet();
+        }
+
+        @Override
+        public void cacheConditionalHit(@NonNull Call call, @NonNull Response cachedResponse) {
+            this.hostMetrics.cacheConditionalHits.incrementAndGet();
+        }
+
+        @Override
+        public void callEnd(@NonNull Call call) {
+            this.hostMetrics.total.record(since(this.callStart));
+        }
+
+        @Override
+        public void callFailed(@NonNull Call call, @NonNull IOException ioe) {
+            this.hostMetrics.failures.incrementAndGet();
+            this.hostMetrics.total.record(since(this.callStart));
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.fox2code.mmm.utils;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Combine the progress of weighted phases into a single value, and publish
+ * it on the main thread at most once per frame.
+ * Progress can be reported from any thread, reporting is lock free.
+ */
+public final class ProgressDispatcher {
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Listener listener;
+    private final double[] weights;
+    private final double totalWeight;
+    // Progress of each phase, stored as double bits
+    private final AtomicLongArray progress;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Choreographer.FrameCallback frameCallback = this::onFrame;
+    private final Runnable scheduleFrame = () ->
+            Choreographer.getInstance().postFrameCallback(this.frameCallback);
+    private volatile boolean closed;
+    private double lastPublished = -1D; // Main thread only
+
+    public interface Listener {
+        // Called on main thread, progress is between 0 and 1
+        void onProgress(double progress);
+    }
+
+    /**
+     * @param weights relative weight of each phase, phases are referenced by index
+     */
+    public ProgressDispatcher(Listener listener, double... weights) {
+        if (weights.length == 0)
+            throw new IllegalArgumentException("At least one phase is required");
+        double totalWeight = 0;
+        for (double weight : weights) {
+            if (weight < 0) throw new IllegalArgumentException("Negative weight");
+            totalWeight += weight;
+        }
+        this.listener = listener;
+        this.weights = weights.clone();
+        this.totalWeight = totalWeight;
+        this.progress = new AtomicLongArray(weights.length);
+    }
+
+    /**
+     * Set the progress of a phase, value is clamped between 0 and 1
+     */
+    public void setProgress(int phase, double value) {
+        if (this.closed) return;
+        value = Math.max(0D, Math.min(1D, value));
+        this.progress.set(phase, Double.doubleToRawLongBits(value));
+        if (this.scheduled.compareAndSet(false, true)) {
+            mainHandler.post(this.scheduleFrame);
+        }
+    }
+
+    public void setProgress(int phase, int current, int max) {
+        this.setProgress(phase, max <= 0 ? 1D : (double) current / max);
+    }
+
+    /**
+     * Get the combined progress of all phases
+     */
+    public double getProgress() {
+        if (this.totalWeight == 0) return 0D;
+        double total = 0;
+        for (int i = 0; i < this.weights.length; i++) {
+            total += this.weights[i] *
+                    Double.longBitsToDouble(this.progress.get(i));
+        }
+        return total / this.totalWeight;
+    }
+
+    /**
+     * Stop publishing progress, pending frame will be dropped
+     */
+    public void close() {
+        this.closed = true;
+    }
+
+    private void onFrame(long frameTimeNanos) {
+        // Clear first so reports made while publishing schedule a new frame
+        this.scheduled.set(false);
+        if (this.closed) return;
+        double progress = this.getProgress();
+        if (progress != this.lastPublished) {
+            this.lastPublished = progress;
+            this.listener.onProgress(progress);
+        }
+    }
+}
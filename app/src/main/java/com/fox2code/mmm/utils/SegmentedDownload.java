@@ -0,0 +1,263 @@
+package com.fox2code.mmm.utils;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Download a file as multiple byte ranges fetched in parallel, ranges
+ * are written directly at their position in a preallocated file.
+ *
+ * Progress of each range is saved in the validator file, after the url and
+ * validator, as the file length then one "start position end" line per range.
+ */
+final class SegmentedDownload {
+    private static final String TAG = "SegmentedDownload";
+    private static final long UPDATE_INTERVAL = 100;
+    private static final long SAVE_INTERVAL = 1000;
+    // Segments smaller than this are not worth an extra request
+    static final long MIN_SIZE = 8 * 1024 * 1024;
+    static final int SEGMENTS = 4;
+    private final String url;
+    private final File file;
+    private final File validatorFile;
+    private final long length;
+    private final String validator;
+    private final Http.ProgressListener progressListener;
+    private final long[] starts;
+    private final long[] ends;
+    private final AtomicLongArray positions;
+    private final AtomicLong downloaded = new AtomicLong();
+    private final AtomicLong nextUpdate = new AtomicLong();
+    private final AtomicLong nextSave = new AtomicLong();
+    private final int divider;
+    private final boolean resumed;
+    private volatile boolean failed;
+    private volatile boolean rangeRejected;
+
+    SegmentedDownload(String url, File file, File validatorFile, long length,
+                      String validator, Http.ProgressListener progressListener) {
+        this(url, file, validatorFile, length, validator, progressListener,
+                new long[SEGMENTS], new long[SEGMENTS], new long[SEGMENTS], false);
+        long segmentSize = (length + SEGMENTS - 1) / SEGMENTS;
+        for (int i = 0; i < SEGMENTS; i++) {
+            this.starts[i] = Math.min(segmentSize * i, length);
+            this.ends[i] = Math.min(this.starts[i] + segmentSize, length);
+            this.positions.set(i, this.starts[i]);
+        }
+    }
+
+    private SegmentedDownload(String url, File file, File validatorFile, long length,
+                              String validator, Http.ProgressListener progressListener,
+                              long[] starts, long[] positions, long[] ends, boolean resumed) {
+        this.url = url;
+        this.file = file;
+        this.validatorFile = validatorFile;
+        this.length = length;
+        this.validator = validator;
+        this.progressListener = progressListener;
+        this.starts = starts;
+        this.ends = ends;
+        this.positions = new AtomicLongArray(positions);
+        this.resumed = resumed;
+        long downloaded = 0;
+        for (int i = 0; i < starts.length; i++) {
+            downloaded += positions[i] - starts[i];
+        }
+        this.downloaded.set(downloaded);
+        int divider = 1; // Make everything go in an int
+        while ((length / divider) > (Integer.MAX_VALUE / 2)) {
+            divider *= 2;
+        }
+        this.divider = divider;
+    }
+
+    /**
+     * Restore a download from the lines of its validator file.
+     * @return null if the saved progress doesn't match the partial file
+     */
+    @Nullable
+    static SegmentedDownload resume(String url, File file, File validatorFile,
+                                    String[] lines, Http.ProgressListener progressListener) {
+        int segments = lines.length - 3;
+        if (segments <= 0) return null;
+        long[] starts = new long[segments];
+        long[] positions = new long[segments];
+        long[] ends = new long[segments];
+        long length;
+        try {
+            length = Long.parseLong(lines[2]);
+            for (int i = 0; i < segments; i++) {
+                String[] values = lines[i + 3].split(" ");
+                if (values.length != 3) return null;
+                starts[i] = Long.parseLong(values[0]);
+                positions[i] = Long.parseLong(values[1]);
+                ends[i] = Long.parseLong(values[2]);
+                if (starts[i] < 0 || positions[i] < starts[i] ||
+                        ends[i] < positions[i] || ends[i] > length) return null;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (file.length() != length) return null;
+        return new SegmentedDownload(url, file, validatorFile, length, lines[1],
+                progressListener, starts, positions, ends, true);
+    }
+
+    /**
+     * @return true if the server didn't honor a range request, the partial
+     * file is then useless and the download need to start over
+     */
+    boolean isRangeRejected() {
+        return this.rangeRejected;
+    }
+
+    /**
+     * Download the file, the first segment is read from the already started
+     * {@code response} to avoid an extra request, unless the download is resumed.
+     */
+    void download(@Nullable Response response) throws IOException {
+        if (!this.resumed) {
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(this.file, "rw")) {
+                randomAccessFile.setLength(this.length);
+            }
+            this.saveState();
+        }
+        Log.d(TAG, "Downloading " + (this.length - this.downloaded.get()) +
+                " bytes in " + this.starts.length + " segments");
+        this.progressListener.onUpdate((int) (this.downloaded.get() / this.divider),
+                (int) (this.length / this.divider), false);
+        Thread[] threads = new Thread[this.starts.length - 1];
+        final IOException[] errors = new IOException[this.starts.length];
+        for (int i = 1; i < this.starts.length; i++) {
+            if (this.positions.get(i) >= this.ends[i]) continue;
+            final int segment = i;
+            threads[i - 1] = new Thread(() -> {
+                try {
+                    this.downloadSegment(segment);
+                } catch (IOException e) {
+                    errors[segment] = e;
+                    this.failed = true;
+                }
+            }, "Segment download thread");
+            threads[i - 1].start();
+        }
+        try {
+            if (response != null && !this.resumed) {
+                this.writeSegment(response, 0);
+            } else {
+                if (response != null) response.close();
+                if (this.positions.get(0) < this.ends[0])
+                    this.downloadSegment(0);
+            }
+        } catch (IOException e) {
+            errors[0] = e;
+            this.failed = true;
+        }
+        try {
+            for (Thread thread : threads) {
+                if (thread == null) continue;
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    this.failed = true;
+                    throw new IOException("Interrupted", e);
+                }
+            }
+            for (IOException error : errors) {
+                if (error != null) throw error;
+            }
+        } catch (IOException e) {
+            // Keep finished bytes of each range to resume them later
+            this.saveState();
+            throw e;
+        }
+        this.progressListener.onUpdate((int) (this.length / this.divider),
+                (int) (this.length / this.divider), true);
+    }
+
+    private void downloadSegment(int segment) throws IOException {
+        Response response = Http.getHttpClient().newCall(new Request.Builder().url(this.url)
+                .header("Accept-Encoding", "identity")
+                .header("Range", "bytes=" + this.positions.get(segment) +
+                        "-" + (this.ends[segment] - 1))
+                .header("If-Range", this.validator).get().build()).execute();
+        if (response.code() != 206) {
+            response.close();
+            this.rangeRejected = true;
+            throw new IOException("Range request failed: " + response.code());
+        }
+        this.writeSegment(response, segment);
+    }
+
+    private void writeSegment(Response response, int segment) throws IOException {
+        ResponseBody responseBody = response.body();
+        if (responseBody == null) {
+            response.close();
+            throw new IOException("No content");
+        }
+        long position = this.positions.get(segment);
+        long end = this.ends[segment];
+        try (InputStream inputStream = responseBody.byteStream();
+             RandomAccessFile randomAccessFile = new RandomAccessFile(this.file, "rw")) {
+            randomAccessFile.seek(position);
+            byte[] buff = new byte[1024 * 16];
+            while (position < end) {
+                if (this.failed) throw new IOException("Another segment failed");
+                int read = inputStream.read(buff, 0, (int) Math.min(buff.length, end - position));
+                if (read == -1) throw new IOException("Segment ended too early");
+                randomAccessFile.write(buff, 0, read);
+                position += read;
+                // Only saved once written, so saved progress never has holes
+                this.positions.set(segment, position);
+                this.onProgress(read);
+            }
+        } finally {
+            response.close();
+        }
+    }
+
+    private void onProgress(int read) {
+        long downloaded = this.downloaded.addAndGet(read);
+        long currentUpdate = System.currentTimeMillis();
+        long nextUpdate = this.nextUpdate.get();
+        if (nextUpdate < currentUpdate && this.nextUpdate
+                .compareAndSet(nextUpdate, currentUpdate + UPDATE_INTERVAL)) {
+            this.progressListener.onUpdate((int) (downloaded / this.divider),
+                    (int) (this.length / this.divider), false);
+        }
+        // Also saved periodically in case the process is killed
+        long nextSave = this.nextSave.get();
+        if (nextSave < currentUpdate && this.nextSave
+                .compareAndSet(nextSave, currentUpdate + SAVE_INTERVAL)) {
+            this.saveState();
+        }
+    }
+
+    private synchronized void saveState() {
+        StringBuilder stringBuilder = new StringBuilder().append(this.url).append('\n')
+                .append(this.validator).append('\n').append(this.length);
+        for (int i = 0; i < this.starts.length; i++) {
+            stringBuilder.append('\n').append(this.starts[i]).append(' ')
+                    .append(this.positions.get(i)).append(' ').append(this.ends[i]);
+        }
+        try {
+            Files.write(this.validatorFile,
+                    stringBuilder.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save download progress", e);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.fox2code.mmm.repo;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class RepoMetadataArchiveTest {
+    private static final byte[] PROP = "id=test\nname=Test\n".getBytes(StandardCharsets.UTF_8);
+    private static final Set<String> IDS = new HashSet<>(Arrays.asList("module1", "module2"));
+
+    @Test
+    public void getModuleId_acceptedNames() {
+        assertEquals("module1", RepoMetadataArchive.getModuleId("module1.prop"));
+        assertEquals("module1", RepoMetadataArchive.getModuleId("./module1.prop"));
+        assertEquals("module1", RepoMetadataArchive.getModuleId("module1/module.prop"));
+        assertEquals("module1", RepoMetadataArchive.getModuleId("repo/props/module1.prop"));
+        assertEquals("module1", RepoMetadataArchive.getModuleId("repo/module1/module.prop"));
+    }
+
+    @Test
+    public void getModuleId_rejectedNames() {
+        assertNull(RepoMetadataArchive.getModuleId("module1/README.md"));
+        assertNull(RepoMetadataArchive.getModuleId("module1/"));
+        assertNull(RepoMetadataArchive.getModuleId(".prop"));
+        assertNull(RepoMetadataArchive.getModuleId("/module.prop"));
+    }
+
+    @Test
+    public void getModuleId_pathTraversal() {
+        assertNull(RepoMetadataArchive.getModuleId("../module1.prop"));
+        assertNull(RepoMetadataArchive.getModuleId("repo/../../module1.prop"));
+        assertNull(RepoMetadataArchive.getModuleId("../module1/module.prop"));
+        assertNull(RepoMetadataArchive.getModuleId("/data/module1.prop"));
+        assertNull(RepoMetadataArchive.getModuleId("..\\module1.prop"));
+    }
+
+    @Test
+    public void unpackZip_storesRequestedModules() throws IOException {
+        byte[] zip = zip("module1.prop", "module2/module.prop",
+                "module3.prop", "module1/README.md");
+        HashMap<String, byte[]> stored = new HashMap<>();
+        Set<String> ids = RepoMetadataArchive.unpackZip(
+                new ByteArrayInputStream(zip), IDS, stored::put);
+        assertEquals(IDS, ids);
+        assertEquals(IDS, stored.keySet());
+        assertArrayEquals(PROP, stored.get("module1"));
+        assertArrayEquals(PROP, stored.get("module2"));
+    }
+
+    @Test
+    public void unpackZip_pathTraversal() throws IOException {
+        byte[] zip = zip("../module1.prop", "module2/../../module2/module.prop");
+        HashMap<String, byte[]> stored = new HashMap<>();
+        Set<String> ids = RepoMetadataArchive.unpackZip(
+                new ByteArrayInputStream(zip), IDS, stored::put);
+        assertTrue(ids.isEmpty());
+        assertTrue(stored.isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void unpackZip_truncated() throws IOException {
+        byte[] zip = zip("module1.prop", "module2.prop");
+        RepoMetadataArchive.unpackZip(new ByteArrayInputStream(
+                Arrays.copyOf(zip, 60)), IDS, (id, data) -> {});
+    }
+
+    @Test
+    public void unpackTar_storesRequestedModules() throws IOException {
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        tarEntry(tar, "props/", '5', new byte[0]);
+        tarEntry(tar, "props/module1.prop", '0', PROP);
+        tarEntry(tar, "props/module3.prop", '0', PROP);
+        tarEntry(tar, "module2/module.prop", '0', PROP);
+        tarEnd(tar);
+        HashMap<String, byte[]> stored = new HashMap<>();
+        Set<String> ids = RepoMetadataArchive.unpackTar(
+                new ByteArrayInputStream(tar.toByteArray()), IDS, stored::put);
+        assertEquals(IDS, ids);
+        assertArrayEquals(PROP, stored.get("module1"));
+        assertArrayEquals(PROP, stored.get("module2"));
+    }
+
+    @Test
+    public void unpackTar_longNames() throws IOException {
+        String longDir = repeat('d', 120) + "/";
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        // GNU long name
+        tarEntry(tar, "././@LongLink", 'L',
+                (longDir + "module1.prop\0").getBytes(StandardCharsets.UTF_8));
+        tarEntry(tar, repeat('d', 99), '0', PROP);
+        // pax header with a global header before it
+        tarEntry(tar, "pax_global_header", 'g', paxRecord("comment=test"));
+        String path = "path=" + longDir + "module2/module.prop";
+        tarEntry(tar, "PaxHeaders/module2", 'x', paxRecord(path));
+        tarEntry(tar, repeat('e', 99), '0', PROP);
+        tarEnd(tar);
+        HashMap<String, byte[]> stored = new HashMap<>();
+        Set<String> ids = RepoMetadataArchive.unpackTar(
+                new ByteArrayInputStream(tar.toByteArray()), IDS, stored::put);
+        assertEquals(IDS, ids);
+        assertArrayEquals(PROP, stored.get("module1"));
+        assertArrayEquals(PROP, stored.get("module2"));
+    }
+
+    @Test
+    public void unpackTar_pathTraversal() throws IOException {
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        tarEntry(tar, "../module1.prop", '0', PROP);
+        tarEntry(tar, "././@LongLink", 'L',
+                "../../module2.prop".getBytes(StandardCharsets.UTF_8));
+        tarEntry(tar, "module2.prop", '0', PROP);
+        tarEnd(tar);
+        Set<String> ids = RepoMetadataArchive.unpackTar(
+                new ByteArrayInputStream(tar.toByteArray()), IDS, (id, data) -> {});
+        assertTrue(ids.isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void unpackTar_truncated() throws IOException {
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        tarEntry(tar, "module1.prop", '0', PROP);
+        byte[] data = tar.toByteArray();
+        RepoMetadataArchive.unpackTar(new ByteArrayInputStream(
+                Arrays.copyOf(data, data.length - 100)), IDS, (id, entry) -> {});
+    }
+
+    @Test(expected = IOException.class)
+    public void unpackTar_missingEnd() throws IOException {
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        tarEntry(tar, "module1.prop", '0', PROP);
+        RepoMetadataArchive.unpackTar(new ByteArrayInputStream(
+                tar.toByteArray()), IDS, (id, data) -> {});
+    }
+
+    @Test(expected = IOException.class)
+    public void unpackTar_invalidPaxHeader() throws IOException {
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        tarEntry(tar, "PaxHeaders/module1", 'x',
+                "99 path=module1.prop\n".getBytes(StandardCharsets.UTF_8));
+        tarEntry(tar, "module1.prop", '0', PROP);
+        tarEnd(tar);
+        RepoMetadataArchive.unpackTar(new ByteArrayInputStream(
+                tar.toByteArray()), IDS, (id, data) -> {});
+    }
+
+    private static byte[] zip(String... names) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream)) {
+            for (String name : names) {
+                zipOutputStream.putNextEntry(new ZipEntry(name));
+                zipOutputStream.write(PROP);
+                zipOutputStream.closeEntry();
+            }
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static void tarEntry(ByteArrayOutputStream tar, String name,
+                                 char type, byte[] data) {
+        byte[] header = new byte[512];
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(nameBytes, 0, header, 0, Math.min(nameBytes.length, 100));
+        byte[] size = String.format("%011o", data.length).getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(size, 0, header, 124, size.length);
+        header[156] = (byte) type;
+        tar.write(header, 0, header.length);
+        tar.write(data, 0, data.length);
+        int padding = (512 - data.length % 512) % 512;
+        tar.write(new byte[padding], 0, padding);
+    }
+
+    private static void tarEnd(ByteArrayOutputStream tar) {
+        tar.write(new byte[1024], 0, 1024);
+    }
+
+    private static byte[] paxRecord(String record) {
+        // The length include its own digits
+        int length = record.length() + 2;
+        int digits = String.valueOf(length).length();
+        if (String.valueOf(length + digits).length() != digits) digits++;
+        length += digits;
+        return (length + " " + record + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}